@@ -12,7 +12,10 @@ tasks.withType<JavaCompile>().configureEach {
     options.compilerArgs.addAll(
         listOf(
             "-Xlint:deprecation",  // warn on deprecated API usage
-            "-Xlint:unchecked"     // warn on unchecked/generic operations
+            "-Xlint:unchecked",    // warn on unchecked/generic operations
+            // simd tpi kernel, used only if present at runtime too. javac 17 always warns "using incubating
+            // module(s)" for it and has no lint key to turn that off, the only expected warning of the build
+            "--add-modules", "jdk.incubator.vector"
         )
     )
  }
@@ -33,10 +36,14 @@ dependencies {
     implementation("org.openstreetmap.osmosis:osmosis-xml:0.49.2")
     implementation("info.picocli:picocli:4.7.7")
     compileOnly("org.jetbrains:annotations:24.0.1")
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
  }
 application {
     mainClass.set("org.pulce.liftylines.Main")
     applicationName = "liftyLines"
+    applicationDefaultJvmArgs = listOf("--add-modules", "jdk.incubator.vector")
 }
 
 //Easy memory tweak for testing
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compressed tile format (.hgtz). Rows are delta-encoded along the row (terrain is smooth, deltas are tiny) and
+ * deflated in independent blocks of ROWS_PER_BLOCK rows, so any row range can be decoded without touching the rest.
+ * Layout: int magic, int samplesPerSide, int rowsPerBlock, int blockCount, long[blockCount + 1] block offsets,
+ * block data. All big-endian.
+ */
+public class BlockTileCodec {
+    private static final int MAGIC = 0x4C485A31; // "LHZ1"
+    public static final int ROWS_PER_BLOCK = 64;
+
+    @FunctionalInterface
+    public interface RowConsumer {
+        void accept(int tileRow, short[] samples);
+    }
+
+    // Encodes a raw big-endian hgt stream into out, returns the number of raw bytes consumed
+    public static long encode(InputStream hgt, int samplesPerSide, Path out) throws IOException {
+        int blockCount = (samplesPerSide + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+        int headerBytes = 4 * Integer.BYTES + (blockCount + 1) * Long.BYTES;
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(samplesPerSide).putInt(ROWS_PER_BLOCK).putInt(blockCount);
+
+        int rowBytes = samplesPerSide * Short.BYTES;
+        byte[] raw = new byte[ROWS_PER_BLOCK * rowBytes];
+        byte[] packed = new byte[raw.length + raw.length / 100 + 64]; // deflate worst case is a tiny bit larger
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long consumed = 0;
+        try (FileChannel fc = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = headerBytes;
+            fc.position(offset);
+            for (int b = 0; b < blockCount; b++) {
+                header.putLong(offset);
+                int rows = Math.min(ROWS_PER_BLOCK, samplesPerSide - b * ROWS_PER_BLOCK);
+                int len = rows * rowBytes;
+                if (hgt.readNBytes(raw, 0, len) != len) {
+                    throw new EOFException("Tile ended after " + (consumed / rowBytes) + " rows");
+                }
+                consumed += len;
+                deltaEncode(ByteBuffer.wrap(raw, 0, len).asShortBuffer(), rows, samplesPerSide);
+
+                deflater.reset();
+                deflater.setInput(raw, 0, len);
+                deflater.finish();
+                int packedLen = 0;
+                while (!deflater.finished()) {
+                    packedLen += deflater.deflate(packed, packedLen, packed.length - packedLen);
+                }
+                offset += fc.write(ByteBuffer.wrap(packed, 0, packedLen));
+            }
+            header.putLong(offset);
+            if (hgt.read() != -1) {
+                throw new ZipException("Tile is larger than " + samplesPerSide + "x" + samplesPerSide + " samples");
+            }
+            header.flip();
+            fc.write(header, 0);
+        } finally {
+            deflater.end();
+        }
+        return consumed;
+    }
+
+    private static void deltaEncode(ShortBuffer samples, int rows, int cols) {
+        for (int r = 0; r < rows; r++) {
+            int base = r * cols;
+            short prev = 0;
+            for (int c = 0; c < cols; c++) {
+                short cur = samples.get(base + c);
+                samples.put(base + c, (short) (cur - prev));
+                prev = cur;
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final FileChannel fc;
+        private final Path path;
+        public final int samplesPerSide;
+        private final int rowsPerBlock;
+        private final long[] offsets;
+
+        public Reader(Path path) throws IOException {
+            this.path = path;
+            fc = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer fixed = readFully(0, 4 * Integer.BYTES);
+                if (fixed.getInt() != MAGIC) {
+                    throw new ZipException("Not a compressed tile: " + path);
+                }
+                samplesPerSide = fixed.getInt();
+                rowsPerBlock = fixed.getInt();
+                int blockCount = fixed.getInt();
+                if (samplesPerSide < 1 || rowsPerBlock < 1 || blockCount < 0 || blockCount > samplesPerSide) {
+                    throw new ZipException("Corrupt compressed tile header: " + path);
+                }
+                ByteBuffer offsetBuf = readFully(4 * Integer.BYTES, (blockCount + 1) * Long.BYTES);
+                offsets = new long[blockCount + 1];
+                offsetBuf.asLongBuffer().get(offsets);
+            } catch (IOException e) {
+                fc.close();
+                throw e;
+            }
+        }
+
+        // Decodes tile rows [firstRow, endRow) block by block and hands them to the sink in order
+        public void readRows(int firstRow, int endRow, RowConsumer sink) throws IOException {
+            int rowBytes = samplesPerSide * Short.BYTES;
+            byte[] raw = new byte[rowsPerBlock * rowBytes];
+            short[] row = new short[samplesPerSide];
+            Inflater inflater = new Inflater(true);
+            try {
+                for (int b = firstRow / rowsPerBlock; b * rowsPerBlock < endRow; b++) {
+                    int blockFirstRow = b * rowsPerBlock;
+                    int rows = Math.min(rowsPerBlock, samplesPerSide - blockFirstRow);
+                    ByteBuffer packed = readFully(offsets[b], (int) (offsets[b + 1] - offsets[b]));
+                    inflater.reset();
+                    inflater.setInput(packed.array());
+                    int len = 0;
+                    while (len < rows * rowBytes && !inflater.finished()) {
+                        int n = inflater.inflate(raw, len, rows * rowBytes - len);
+                        if (n == 0 && inflater.needsInput()) break;
+                        len += n;
+                    }
+                    if (len != rows * rowBytes) {
+                        throw new ZipException("Truncated block " + b + " in " + path);
+                    }
+                    ShortBuffer samples = ByteBuffer.wrap(raw).asShortBuffer();
+                    for (int r = Math.max(firstRow, blockFirstRow); r < Math.min(endRow, blockFirstRow + rows); r++) {
+                        samples.position((r - blockFirstRow) * samplesPerSide);
+                        samples.get(row);
+                        short prev = 0;
+                        for (int c = 0; c < samplesPerSide; c++) {
+                            prev += row[c];
+                            row[c] = prev;
+                        }
+                        sink.accept(r, row);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt compressed tile " + path + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private ByteBuffer readFully(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Unexpected end of " + path);
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+    }
+}
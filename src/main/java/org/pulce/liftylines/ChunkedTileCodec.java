@@ -0,0 +1,174 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipException;
+
+/**
+ * Random-access tile format (.hgtc). The tile is cut into CHUNK x CHUNK sample chunks (smaller at the south and east
+ * edges), stored uncompressed chunk row by chunk row, so any rectangle is read by mapping just the chunks it touches.
+ * Layout: int magic, int samplesPerSide, int chunkSize, int chunksPerSide, long[chunksPerSide^2 + 1] chunk offsets,
+ * chunk data with the chunk's rows one after the other. All big-endian.
+ */
+public class ChunkedTileCodec {
+    private static final int MAGIC = 0x4C484331; // "LHC1"
+    public static final int CHUNK = 256;
+
+    @FunctionalInterface
+    public interface SpanConsumer {
+        // samples [offset, offset + length) of the buffer are tile row tileRow, starting at tile column tileCol
+        void accept(int tileRow, int tileCol, ShortBuffer samples, int offset, int length);
+    }
+
+    // Encodes a raw big-endian hgt stream into out, returns the number of raw bytes consumed
+    public static long encode(InputStream hgt, int samplesPerSide, Path out) throws IOException {
+        int chunks = (samplesPerSide + CHUNK - 1) / CHUNK;
+        int headerBytes = 4 * Integer.BYTES + (chunks * chunks + 1) * Long.BYTES;
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(samplesPerSide).putInt(CHUNK).putInt(chunks);
+
+        int rowBytes = samplesPerSide * Short.BYTES;
+        byte[] raw = new byte[CHUNK * rowBytes];
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK * CHUNK * Short.BYTES);
+        long consumed = 0;
+        try (FileChannel fc = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = headerBytes;
+            fc.position(offset);
+            for (int cr = 0; cr < chunks; cr++) {
+                int rows = Math.min(CHUNK, samplesPerSide - cr * CHUNK);
+                int len = rows * rowBytes;
+                if (hgt.readNBytes(raw, 0, len) != len) {
+                    throw new EOFException("Tile ended after " + (consumed / rowBytes) + " rows");
+                }
+                consumed += len;
+                // cut the chunk row into chunks, rows of a chunk are contiguous
+                for (int cc = 0; cc < chunks; cc++) {
+                    header.putLong(offset);
+                    int cols = Math.min(CHUNK, samplesPerSide - cc * CHUNK);
+                    chunk.clear();
+                    for (int r = 0; r < rows; r++) {
+                        chunk.put(raw, r * rowBytes + cc * CHUNK * Short.BYTES, cols * Short.BYTES);
+                    }
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        offset += fc.write(chunk);
+                    }
+                }
+            }
+            header.putLong(offset);
+            if (hgt.read() != -1) {
+                throw new ZipException("Tile is larger than " + samplesPerSide + "x" + samplesPerSide + " samples");
+            }
+            header.flip();
+            fc.write(header, 0);
+        }
+        return consumed;
+    }
+
+    public static class Reader implements Closeable {
+        private final FileChannel fc;
+        private final Path path;
+        public final int samplesPerSide;
+        private final int chunkSize;
+        private final int chunks;
+        private final long[] offsets;
+
+        public Reader(Path path) throws IOException {
+            this.path = path;
+            fc = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer fixed = readFully(0, 4 * Integer.BYTES);
+                if (fixed.getInt() != MAGIC) {
+                    throw new ZipException("Not a chunked tile: " + path);
+                }
+                samplesPerSide = fixed.getInt();
+                chunkSize = fixed.getInt();
+                chunks = fixed.getInt();
+                offsets = new long[chunks * chunks + 1];
+                readFully(4 * Integer.BYTES, offsets.length * Long.BYTES).asLongBuffer().get(offsets);
+            } catch (IOException e) {
+                fc.close();
+                throw e;
+            }
+        }
+
+        // Hands the rectangle rows [firstRow, endRow) x cols [firstCol, endCol) to the sink, one chunk span at a time.
+        // Rows arrive north to south, the spans of a row west to east.
+        public void readRect(int firstRow, int endRow, int firstCol, int endCol, SpanConsumer sink) throws IOException {
+            if (firstRow >= endRow || firstCol >= endCol) return;
+            int cc0 = firstCol / chunkSize, cc1 = (endCol - 1) / chunkSize;
+            for (int cr = firstRow / chunkSize; cr * chunkSize < endRow; cr++) {
+                // the touched chunks of a chunk row are contiguous in the file, one mapping covers them
+                long mapStart = offsets[cr * chunks + cc0];
+                long mapEnd = offsets[cr * chunks + cc1 + 1];
+                MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                try {
+                    ShortBuffer shorts = buf.order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+                    int chunkRows = Math.min(chunkSize, samplesPerSide - cr * chunkSize);
+                    int r0 = Math.max(firstRow, cr * chunkSize), r1 = Math.min(endRow, cr * chunkSize + chunkRows);
+                    for (int r = r0; r < r1; r++) {
+                        for (int cc = cc0; cc <= cc1; cc++) {
+                            int chunkCols = Math.min(chunkSize, samplesPerSide - cc * chunkSize);
+                            int c0 = Math.max(firstCol, cc * chunkSize), c1 = Math.min(endCol, cc * chunkSize + chunkCols);
+                            int base = (int) ((offsets[cr * chunks + cc] - mapStart) / Short.BYTES);
+                            sink.accept(r, c0, shorts, base + (r - cr * chunkSize) * chunkCols + c0 - cc * chunkSize, c1 - c0);
+                        }
+                    }
+                } finally {
+                    Raster.release(buf);
+                }
+            }
+        }
+
+        // Full rows [firstRow, endRow) in order, for consumers that want whole rows
+        public void readRows(int firstRow, int endRow, BlockTileCodec.RowConsumer sink) throws IOException {
+            short[] row = new short[samplesPerSide];
+            readRect(firstRow, endRow, 0, samplesPerSide, (tileRow, tileCol, samples, offset, length) -> {
+                samples.get(offset, row, tileCol, length);
+                if (tileCol + length == samplesPerSide) {
+                    sink.accept(tileRow, row); // last span of the row
+                }
+            });
+        }
+
+        private ByteBuffer readFully(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Unexpected end of " + path);
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+    }
+}
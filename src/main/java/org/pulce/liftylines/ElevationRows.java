@@ -0,0 +1,24 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+// Row-wise read access to an elevation grid, plain (ShortRaster) or packed (PackedShortRaster)
+public interface ElevationRows {
+    int rows();
+
+    int cols();
+
+    void getRow(int row, int fromCol, short[] dst, int dstOffset, int length);
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where {@link HgtFileReader} gets its elevation data from: hgt tiles ({@link TileDownloader}) or local DEM rasters
+ * ({@link GeoTiffSource}). A source cuts the bounding box into patches, each delivering samples on the 1 arcsec grid
+ * of the bbox (row 0 = maxLatitude, col 0 = minLongitude), coarser grids are averaged down from there.
+ */
+public interface ElevationSource {
+
+    // Patches covering every sample of the bbox, patches may stick out of it
+    List<? extends Patch> patches(LiftyBoundingBox boundingBox);
+
+    abstract class Patch {
+        public final String name;
+        public final int firstRowInArray; // 1 arcsec bbox grid position of the patch's first row and col
+        public final int firstColInArray;
+        public final int rows;
+        public final int cols;
+        final AtomicLong decodedBytes = new AtomicLong();
+        final AtomicLong decodeNanos = new AtomicLong();
+        boolean skipped; // no needed cell within kernel reach, never read
+
+        protected Patch(String name, int firstRowInArray, int firstColInArray, int rows, int cols) {
+            this.name = name;
+            this.firstRowInArray = firstRowInArray;
+            this.firstColInArray = firstColInArray;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        // Completes once the data can be read, e.g. after a download
+        public abstract CompletableFuture<?> ready();
+
+        // Can row slices of the patch be decoded independently?
+        public abstract boolean splittable();
+
+        // Dumps the patch's share of global rows [fromRow, toRow) into the array, array[0] being global row arrayFirstRow
+        public abstract void dumpDataToArray(ShortRaster array, int arrayFirstRow, int fromRow, int toRow);
+
+        // patch columns [firstCol(), endCol(target)) fall into the bbox
+        protected int firstCol() {
+            return Math.max(0, -firstColInArray);
+        }
+
+        protected int endCol(ShortRaster target) {
+            return Math.min(cols, target.cols - firstColInArray);
+        }
+    }
+}
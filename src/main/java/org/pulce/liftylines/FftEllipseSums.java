@@ -0,0 +1,221 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Ellipse sums by fft convolution, for kernels so large that summing diamY prefix sum segments per cell gets
+ * expensive. The grid is cut into overlapping windows of NY x NX (powers of two, about twice the kernel), each is
+ * transformed, multiplied with the kernel's spectrum and transformed back. Circular wrap-around only spoils the
+ * window's margin of ry rows and rx cols, the inner TY x TX sums are exact: the convolution is done in doubles and
+ * the sums are integers, so rounding gives exactly what the prefix sums give. Cost per cell is O(log N) whatever the
+ * radius. Memory: the kernel's spectrum (one window of doubles, real as the kernel is symmetric), two windows of
+ * doubles per running task, at most MAX_SCRATCH_BYTES of them at once, and the sums of the rows asked for, which the
+ * caller keeps in a raster a window row tall.
+ * Immutable once built, windows are computed concurrently.
+ */
+final class FftEllipseSums {
+    static final long MAX_SCRATCH_BYTES = 256L << 20; // windows of doubles alive at once, per call of sums
+
+    final int ry, rx;
+    final int ny, nx; // window
+    final int ty, tx; // sums per window
+    private final double[] kernelRe;
+    private final double[] cosY, sinY, cosX, sinX;
+
+    // dx[d] is the half width of ellipse row d - ry, as in TpiCalculator.Ellipse
+    FftEllipseSums(int[] dx) {
+        ry = (dx.length - 1) / 2;
+        rx = Arrays.stream(dx).max().orElse(0);
+        ny = Integer.highestOneBit(Math.max(1, 2 * dx.length - 1)) << 1;
+        nx = Integer.highestOneBit(Math.max(1, 2 * (2 * rx + 1) - 1)) << 1;
+        ty = ny - 2 * ry;
+        tx = nx - 2 * rx;
+        cosY = new double[ny / 2];
+        sinY = new double[ny / 2];
+        twiddles(cosY, sinY, ny);
+        cosX = new double[nx / 2];
+        sinX = new double[nx / 2];
+        twiddles(cosX, sinX, nx);
+
+        // ellipse cell (dy, dx) at (dy mod ny, dx mod nx): the kernel is symmetric, convolution is correlation
+        kernelRe = new double[ny * nx];
+        double[] kernelIm = new double[ny * nx];
+        for (int d = 0; d < dx.length; d++) {
+            int row = Math.floorMod(d - ry, ny) * nx;
+            for (int x = -dx[d]; x <= dx[d]; x++) {
+                kernelRe[row + Math.floorMod(x, nx)] = 1;
+            }
+        }
+        fft2d(kernelRe, kernelIm, false, new double[ny], new double[ny]);
+        // the imaginary part is rounding noise: the kernel is symmetric in both axes, its spectrum real
+    }
+
+    /**
+     * Sums of all cells of data rows [startRow, endRow) into out, row 0 of out being data row outFirstRow. Cells
+     * outside the grid count as 0, like the ring buffer's rows outside the grid. The windows (row x col tiles) are
+     * independent and spread over the pool in as many tasks as workers, fewer if their scratch would exceed
+     * MAX_SCRATCH_BYTES. Every task reuses one set of scratch arrays for all of its windows.
+     */
+    void sums(ElevationRows data, int startRow, int endRow, LongRaster out, int outFirstRow, ForkJoinPool pool) {
+        int cols = data.cols();
+        int windowRows = (Math.max(0, endRow - startRow) + ty - 1) / ty, windowCols = (cols + tx - 1) / tx;
+        int windows = windowRows * windowCols;
+        if (windows == 0) return;
+        long scratchBytes = 2L * ny * nx * Double.BYTES;
+        int tasks = (int) Math.min(Math.min(pool.getParallelism(), windows), Math.max(1, MAX_SCRATCH_BYTES / scratchBytes));
+        pool.invoke(new Windows(0, windows, tasks, (from, to) -> {
+            Scratch scratch = new Scratch(ny, nx, cols, tx);
+            for (int k = from; k < to; k++) {
+                window(data, startRow + (k / windowCols) * ty, (k % windowCols) * tx, endRow, out, outFirstRow, scratch);
+            }
+        }));
+    }
+
+    private static class Scratch {
+        final double[] re, im, colRe, colIm;
+        final short[] rowData;
+        final long[] sums;
+
+        Scratch(int ny, int nx, int cols, int tx) {
+            re = new double[ny * nx];
+            im = new double[ny * nx];
+            colRe = new double[ny];
+            colIm = new double[ny];
+            rowData = new short[cols];
+            sums = new long[tx];
+        }
+    }
+
+    // Window rows [by - ry, by - ry + ny), cols [bx - rx, bx - rx + nx), its exact sums are rows [by, by + ty) and
+    // cols [bx, bx + tx)
+    private void window(ElevationRows data, int by, int bx, int endRow, LongRaster out, int outFirstRow, Scratch scratch) {
+        int rows = data.rows(), cols = data.cols();
+        double[] re = scratch.re, im = scratch.im;
+        short[] rowData = scratch.rowData;
+        Arrays.fill(re, 0);
+        Arrays.fill(im, 0);
+        int fromCol = Math.max(0, bx - rx), toCol = Math.min(cols, bx - rx + nx);
+        for (int w = 0; w < ny; w++) {
+            int y = by - ry + w;
+            if (y < 0 || y >= rows) continue;
+            data.getRow(y, 0, rowData, 0, cols);
+            int base = w * nx - (bx - rx);
+            for (int x = fromCol; x < toCol; x++) re[base + x] = rowData[x];
+        }
+        fft2d(re, im, false, scratch.colRe, scratch.colIm);
+        for (int k = 0; k < re.length; k++) {
+            re[k] *= kernelRe[k];
+            im[k] *= kernelRe[k];
+        }
+        fft2d(re, im, true, scratch.colRe, scratch.colIm);
+        double scale = 1.0 / ((double) ny * nx);
+        int width = Math.min(cols, bx + tx) - bx;
+        for (int y = by; y < Math.min(endRow, by + ty); y++) {
+            int base = (y - by + ry) * nx + rx;
+            for (int x = 0; x < width; x++) {
+                scratch.sums[x] = Math.round(re[base + x] * scale);
+            }
+            out.setRow(y - outFirstRow, bx, scratch.sums, 0, width);
+        }
+    }
+
+    private interface WindowRange {
+        void run(int from, int to);
+    }
+
+    // Splits the window range [from, to) into tasks parts of about equal size
+    private static class Windows extends RecursiveAction {
+        final int from, to, tasks;
+        final WindowRange task;
+
+        Windows(int from, int to, int tasks, WindowRange task) {
+            this.from = from;
+            this.to = to;
+            this.tasks = tasks;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (tasks <= 1) {
+                task.run(from, to);
+                return;
+            }
+            int half = tasks / 2;
+            int mid = from + (int) ((long) (to - from) * half / tasks);
+            invokeAll(new Windows(from, mid, half, task), new Windows(mid, to, tasks - half, task));
+        }
+    }
+
+    private static void twiddles(double[] cos, double[] sin, int n) {
+        for (int k = 0; k < n / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / n);
+            sin[k] = Math.sin(2 * Math.PI * k / n);
+        }
+    }
+
+    // Unscaled: inverse after forward multiplies by ny * nx. colRe/colIm hold a column while it is transformed.
+    private void fft2d(double[] re, double[] im, boolean inverse, double[] colRe, double[] colIm) {
+        for (int row = 0; row < ny; row++) {
+            fft(re, im, row * nx, nx, cosX, sinX, inverse);
+        }
+        for (int col = 0; col < nx; col++) {
+            for (int row = 0; row < ny; row++) {
+                colRe[row] = re[row * nx + col];
+                colIm[row] = im[row * nx + col];
+            }
+            fft(colRe, colIm, 0, ny, cosY, sinY, inverse);
+            for (int row = 0; row < ny; row++) {
+                re[row * nx + col] = colRe[row];
+                im[row * nx + col] = colIm[row];
+            }
+        }
+    }
+
+    // In-place iterative radix-2 fft of the n values at off
+    private static void fft(double[] re, double[] im, int off, int n, double[] cos, double[] sin, boolean inverse) {
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                double t = re[off + i];
+                re[off + i] = re[off + j];
+                re[off + j] = t;
+                t = im[off + i];
+                im[off + i] = im[off + j];
+                im[off + j] = t;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1, step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step], wi = inverse ? sin[k * step] : -sin[k * step];
+                    int a = off + i + k, b = a + half;
+                    double xr = re[b] * wr - im[b] * wi, xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -45,6 +45,11 @@ public class FileManager {
     public static Logger LOG = Logger.getLogger(FileManager.class.getName());
 
     public FileManager(String workingDirString, String outputFileName) {
+        this(workingDirString, outputFileName, null);
+    }
+
+    // tileCacheString: shared tile directory, null for the tiles dir inside the working directory
+    public FileManager(String workingDirString, String outputFileName, String tileCacheString) {
         // check WD path
         workingDir = Paths.get(workingDirString).toAbsolutePath().normalize();
         if (!Files.exists(workingDir)) {
@@ -69,7 +74,9 @@ public class FileManager {
         if (Files.exists(osmOutputFile)) LOG.fine(osmOutputFile + " exists, but will be overwritten.");
 
         // Check tile directory
-        tileDir = workingDir.resolve("tiles");
+        tileDir = tileCacheString == null || tileCacheString.isEmpty()
+                ? workingDir.resolve("tiles")
+                : Paths.get(tileCacheString).toAbsolutePath().normalize();
         LOG.fine("Tile directory set to: " + tileDir);
 
         if (!Files.exists(tileDir)) {
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.nio.FloatBuffer;
+
+// TPI grid, see Raster for the memory layout
+public class FloatRaster extends Raster {
+    private final FloatBuffer[] views;
+
+    public FloatRaster(int rows, int cols, Storage storage) {
+        super(rows, cols, Float.BYTES, 0, storage);
+        views = new FloatBuffer[segments.length];
+        for (int s = 0; s < segments.length; s++) views[s] = segments[s].asFloatBuffer();
+    }
+
+    public float get(int row, int col) {
+        return views[segment(row)].get(offset(row, col));
+    }
+
+    public float get(long index) {
+        return get((int) (index / cols), (int) (index % cols));
+    }
+
+    public void set(int row, int col, float value) {
+        views[segment(row)].put(offset(row, col), value);
+    }
+
+    public void getRow(int row, int fromCol, float[] dst, int dstOffset, int length) {
+        views[segment(row)].get(offset(row, fromCol), dst, dstOffset, length);
+    }
+
+    public void setRow(int row, int fromCol, float[] src, int srcOffset, int length) {
+        views[segment(row)].put(offset(row, fromCol), src, srcOffset, length);
+    }
+}
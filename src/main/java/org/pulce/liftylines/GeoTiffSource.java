@@ -0,0 +1,671 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Local DEM rasters in GeoTIFF format as {@link ElevationSource}, so large DEMs need not be cut into hgt tiles first.
+ * Reads single band 16/32 bit integer or 32 bit float rasters in lat/lon, stripped or tiled, uncompressed or
+ * compressed with Deflate, LZW or PackBits (predictors included), classic TIFF and BigTIFF. Only the strips or tiles
+ * holding requested samples are mapped and decoded.
+ * Every 1 arcsec sample of the bbox takes the nearest raster pixel, nodata pixels read as 0. Where files overlap,
+ * the one listed first wins. Projected rasters have to be warped first, e.g. gdalwarp -t_srs EPSG:4326.
+ */
+public class GeoTiffSource implements ElevationSource, Closeable {
+    public static Logger LOG = Logger.getLogger(GeoTiffSource.class.getName());
+
+    private static final int MAX_GROUP_ROWS = 256; // bbox rows assembled at once before they go to the array
+    private static final double EPS = 1e-6;        // in pixels, keeps samples on pixel edges from flipping sides
+
+    private final List<Dem> dems;
+
+    private GeoTiffSource(List<Dem> dems) {
+        this.dems = dems;
+    }
+
+    public static GeoTiffSource open(List<Path> files) {
+        List<Dem> dems = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                try {
+                    dems.add(new Dem(file));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot read DEM " + file + ": " + e.getMessage(), e);
+                }
+            }
+        } catch (RuntimeException e) {
+            new GeoTiffSource(dems).close();
+            throw e;
+        }
+        return new GeoTiffSource(dems);
+    }
+
+    @Override
+    public List<? extends Patch> patches(LiftyBoundingBox boundingBox) {
+        final int spd = HgtFileReader.TILE_SAMPLES_PER_DEGREE;
+        int f = boundingBox.arcsecPerSample;
+        int fullRows = (boundingBox.getMaskRows() - 1) * f + 1;
+        int fullCols = (boundingBox.getMaskCols() - 1) * f + 1;
+        List<DemPatch> patches = new ArrayList<>();
+        for (Dem dem : dems) {
+            int[] srcRows = new int[fullRows], srcCols = new int[fullCols];
+            for (int r = 0; r < fullRows; r++) srcRows[r] = dem.row(boundingBox.maxLatitude - r / (double) spd);
+            for (int c = 0; c < fullCols; c++) srcCols[c] = dem.col(boundingBox.minLongitude + c / (double) spd);
+            int r0 = firstInside(srcRows, dem.height), r1 = endInside(srcRows, dem.height);
+            int c0 = firstInside(srcCols, dem.width), c1 = endInside(srcCols, dem.width);
+            if (r0 >= r1 || c0 >= c1) {
+                LOG.fine("DEM " + dem.path + " does not touch the bounding box");
+                continue;
+            }
+            // earlier files win: only the parts not covered yet are read from this one
+            List<DemPatch> pieces = List.of(new DemPatch(dem, srcRows, srcCols, r0, r1, c0, c1));
+            for (DemPatch earlier : patches) {
+                List<DemPatch> rest = new ArrayList<>();
+                for (DemPatch piece : pieces) rest.addAll(piece.minus(earlier));
+                pieces = rest;
+            }
+            patches.addAll(pieces);
+        }
+        checkCoverage(patches, boundingBox, fullRows, fullCols);
+        return patches;
+    }
+
+    // every sample of the bbox must come from some file, a hole would silently read as sea level
+    private static void checkCoverage(List<DemPatch> patches, LiftyBoundingBox boundingBox, int fullRows, int fullCols) {
+        TreeSet<Integer> cuts = new TreeSet<>(List.of(0));
+        for (DemPatch p : patches) {
+            cuts.add(p.firstRowInArray);
+            cuts.add(p.firstRowInArray + p.rows);
+        }
+        for (int row : cuts) {
+            if (row >= fullRows) break;
+            List<DemPatch> spans = new ArrayList<>();
+            for (DemPatch p : patches) {
+                if (p.firstRowInArray <= row && row < p.firstRowInArray + p.rows) spans.add(p);
+            }
+            spans.sort(Comparator.comparingInt(p -> p.firstColInArray));
+            int covered = 0;
+            for (DemPatch p : spans) {
+                if (p.firstColInArray > covered) break;
+                covered = Math.max(covered, p.firstColInArray + p.cols);
+            }
+            if (covered < fullCols) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "The DEM files do not cover the bounding box at lat %.4f, lon %.4f",
+                        boundingBox.maxLatitude - row / (double) HgtFileReader.TILE_SAMPLES_PER_DEGREE,
+                        boundingBox.minLongitude + covered / (double) HgtFileReader.TILE_SAMPLES_PER_DEGREE));
+            }
+        }
+    }
+
+    private static int firstInside(int[] index, int limit) {
+        int i = 0;
+        while (i < index.length && (index[i] < 0 || index[i] >= limit)) i++;
+        return i;
+    }
+
+    private static int endInside(int[] index, int limit) {
+        int i = index.length;
+        while (i > 0 && (index[i - 1] < 0 || index[i - 1] >= limit)) i--;
+        return i;
+    }
+
+    @Override
+    public void close() {
+        for (Dem dem : dems) {
+            try {
+                dem.fc.close();
+            } catch (IOException e) {
+                LOG.fine("Closing " + dem.path + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // The bbox rows [r0, r1) x cols [c0, c1) read from one file, srcRows/srcCols map bbox rows/cols to pixels
+    private static class DemPatch extends Patch {
+        private final Dem dem;
+        private final int[] srcRows;
+        private final int[] srcCols;
+
+        DemPatch(Dem dem, int[] srcRows, int[] srcCols, int r0, int r1, int c0, int c1) {
+            super(dem.path.getFileName().toString(), r0, c0, r1 - r0, c1 - c0);
+            this.dem = dem;
+            this.srcRows = srcRows;
+            this.srcCols = srcCols;
+        }
+
+        // Up to four pieces of this patch that lie outside the other one
+        List<DemPatch> minus(DemPatch other) {
+            int r0 = firstRowInArray, r1 = r0 + rows, c0 = firstColInArray, c1 = c0 + cols;
+            int or0 = other.firstRowInArray, or1 = or0 + other.rows, oc0 = other.firstColInArray, oc1 = oc0 + other.cols;
+            if (or0 >= r1 || or1 <= r0 || oc0 >= c1 || oc1 <= c0) return List.of(this);
+            List<DemPatch> pieces = new ArrayList<>();
+            int mr0 = Math.max(r0, or0), mr1 = Math.min(r1, or1);
+            if (r0 < mr0) pieces.add(new DemPatch(dem, srcRows, srcCols, r0, mr0, c0, c1));
+            if (mr1 < r1) pieces.add(new DemPatch(dem, srcRows, srcCols, mr1, r1, c0, c1));
+            if (c0 < oc0) pieces.add(new DemPatch(dem, srcRows, srcCols, mr0, mr1, c0, oc0));
+            if (oc1 < c1) pieces.add(new DemPatch(dem, srcRows, srcCols, mr0, mr1, oc1, c1));
+            return pieces;
+        }
+
+        @Override
+        public CompletableFuture<?> ready() {
+            return CompletableFuture.completedFuture(dem.path);
+        }
+
+        @Override
+        public boolean splittable() {
+            return true;
+        }
+
+        // Rows are handled in groups falling into the same strip/tile row, so each segment is decoded once per group
+        @Override
+        public void dumpDataToArray(ShortRaster array, int arrayFirstRow, int fromRow, int toRow) {
+            int first = Math.max(fromRow, firstRowInArray), end = Math.min(toRow, firstRowInArray + rows);
+            int c0 = firstColInArray + firstCol(), c1 = firstColInArray + endCol(array); // bbox columns
+            if (first >= end || c0 >= c1) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                for (int r = first; r < end; ) {
+                    int segRow = srcRows[r] / dem.segRows;
+                    int groupEnd = r + 1;
+                    while (groupEnd < end && groupEnd - r < MAX_GROUP_ROWS && srcRows[groupEnd] / dem.segRows == segRow) {
+                        groupEnd++;
+                    }
+                    short[][] group = new short[groupEnd - r][c1 - c0];
+                    for (int c = c0; c < c1; ) {
+                        int segCol = srcCols[c] / dem.segCols;
+                        int spanEnd = c + 1;
+                        while (spanEnd < c1 && srcCols[spanEnd] / dem.segCols == segCol) spanEnd++;
+                        ByteBuffer segment = dem.segment(segRow, segCol);
+                        try {
+                            for (int g = 0; g < group.length; g++) {
+                                int base = (srcRows[r + g] - segRow * dem.segRows) * dem.segCols - segCol * dem.segCols;
+                                for (int x = c; x < spanEnd; x++) {
+                                    group[g][x - c0] = dem.elevation(segment, base + srcCols[x]);
+                                }
+                            }
+                        } finally {
+                            if (segment.isDirect()) Raster.release(segment);
+                        }
+                        decodedBytes.addAndGet(segment.capacity());
+                        c = spanEnd;
+                    }
+                    for (int g = 0; g < group.length; g++) {
+                        array.setRow(r + g - arrayFirstRow, c0, group[g], 0, group[g].length);
+                    }
+                    r = groupEnd;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Read error while processing " + dem.path, e);
+            }
+            decodeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private enum SampleType {
+        INT16(2), UINT16(2), INT32(4), UINT32(4), FLOAT32(4);
+
+        final int bytes;
+
+        SampleType(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // One GeoTIFF: the first image of the file, its segments (strips or tiles) and where its pixels are on earth
+    private static class Dem {
+        private static final int NONE = 1, LZW = 5, DEFLATE = 8, ADOBE_DEFLATE = 32946, PACKBITS = 32773;
+
+        final Path path;
+        final FileChannel fc;
+        private ByteOrder order;
+        private boolean bigTiff;
+        private final Map<Integer, long[]> entries = new HashMap<>(); // tag -> type, count, position of value field
+
+        int width, height;
+        int segRows, segCols;  // strip or tile size in pixels
+        private int segsAcross;
+        private long[] offsets, byteCounts;
+        private SampleType type;
+        private int compression, predictor;
+        private double nodata = Double.NaN;
+        private double originLat, originLon; // center of pixel (0, 0)
+        private double pixelLat, pixelLon;   // pixel size in degrees
+
+        Dem(Path path) throws IOException {
+            this.path = path;
+            fc = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                readDirectory();
+                readLayout();
+                readGeoreference();
+            } catch (IOException | RuntimeException e) {
+                fc.close();
+                throw e;
+            }
+            LOG.fine(String.format(Locale.US, "DEM %s: %dx%d %s pixels of %.3fx%.3f arcsec, %dx%d segments, compression %d",
+                    path.getFileName(), width, height, type, pixelLat * 3600, pixelLon * 3600, segRows, segCols, compression));
+        }
+
+        // nearest pixel row/col of a coordinate, may be outside the raster
+        int row(double lat) {
+            return (int) Math.floor((originLat - lat) / pixelLat + 0.5 + EPS);
+        }
+
+        int col(double lon) {
+            return (int) Math.floor((lon - originLon) / pixelLon + 0.5 + EPS);
+        }
+
+        short elevation(ByteBuffer segment, int index) {
+            double v = switch (type) {
+                case INT16 -> segment.getShort(index * 2);
+                case UINT16 -> segment.getShort(index * 2) & 0xFFFF;
+                case INT32 -> segment.getInt(index * 4);
+                case UINT32 -> segment.getInt(index * 4) & 0xFFFFFFFFL;
+                case FLOAT32 -> segment.getFloat(index * 4);
+            };
+            if (Double.isNaN(v) || v == nodata) return 0;
+            return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(v)));
+        }
+
+        // The decoded pixels of a strip/tile, segCols pixels per row in file byte order. Uncompressed segments are
+        // mapped straight from the file, the caller releases them.
+        ByteBuffer segment(int segRow, int segCol) throws IOException {
+            int index = segRow * segsAcross + segCol;
+            // tiles are always full size, the last strip only holds the rows left
+            int rowsInSegment = isTiled() ? segRows : Math.min(segRows, height - segRow * segRows);
+            int expected = rowsInSegment * segCols * type.bytes;
+            if (byteCounts[index] == 0) {
+                return ByteBuffer.allocate(expected).order(order); // sparse file, segment was never written
+            }
+            MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, offsets[index], byteCounts[index]);
+            if (compression == NONE && predictor == 1 && byteCounts[index] >= expected) {
+                return mapped.order(order);
+            }
+            try {
+                byte[] out = new byte[expected];
+                switch (compression) {
+                    case NONE -> mapped.get(out, 0, Math.min(expected, mapped.remaining()));
+                    case DEFLATE, ADOBE_DEFLATE -> inflate(mapped, out);
+                    case LZW -> lzw(mapped, out);
+                    case PACKBITS -> packBits(mapped, out);
+                    default -> throw new IllegalStateException("Unsupported compression " + compression);
+                }
+                if (predictor == 2) {
+                    undoHorizontalDifferencing(out, rowsInSegment);
+                } else if (predictor == 3) {
+                    undoFloatingPointDifferencing(out, rowsInSegment);
+                }
+                return ByteBuffer.wrap(out).order(order);
+            } finally {
+                Raster.release(mapped);
+            }
+        }
+
+        private boolean isTiled() {
+            return entries.containsKey(322);
+        }
+
+        private void readDirectory() throws IOException {
+            ByteBuffer header = read(0, 16);
+            short magic = header.getShort(0);
+            if (magic == 0x4949) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (magic == 0x4D4D) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new ZipException("Not a TIFF file");
+            }
+            header.order(order);
+            int version = header.getShort(2);
+            long ifd;
+            if (version == 42) {
+                ifd = header.getInt(4) & 0xFFFFFFFFL;
+            } else if (version == 43) {
+                bigTiff = true;
+                ifd = header.getLong(8);
+            } else {
+                throw new ZipException("Unknown TIFF version " + version);
+            }
+            // only the first image is read, overviews and masks come after it
+            long count = bigTiff ? read(ifd, 8).getLong() : read(ifd, 2).getShort() & 0xFFFF;
+            int entrySize = bigTiff ? 20 : 12;
+            long first = ifd + (bigTiff ? 8 : 2);
+            ByteBuffer dir = read(first, (int) (count * entrySize));
+            for (int i = 0; i < count; i++) {
+                int pos = i * entrySize;
+                int tag = dir.getShort(pos) & 0xFFFF;
+                int fieldType = dir.getShort(pos + 2) & 0xFFFF;
+                long n = bigTiff ? dir.getLong(pos + 4) : dir.getInt(pos + 4) & 0xFFFFFFFFL;
+                long valuePos = first + pos + (bigTiff ? 12 : 8);
+                entries.put(tag, new long[]{fieldType, n, valuePos});
+            }
+        }
+
+        private void readLayout() throws IOException {
+            width = (int) single(256, -1);
+            height = (int) single(257, -1);
+            if (width < 1 || height < 1) throw new ZipException("TIFF without image size");
+            if (single(277, 1) != 1) {
+                throw new IllegalArgumentException("DEM " + path + " has more than one band");
+            }
+            int bits = (int) single(258, 1);
+            int format = (int) single(339, 1);
+            type = switch (format * 100 + bits) {
+                case 116 -> SampleType.UINT16;
+                case 216 -> SampleType.INT16;
+                case 132 -> SampleType.UINT32;
+                case 232 -> SampleType.INT32;
+                case 332 -> SampleType.FLOAT32;
+                default -> throw new IllegalArgumentException("DEM " + path + " has unsupported " + bits
+                        + " bit samples of format " + format);
+            };
+            compression = (int) single(259, NONE);
+            if (compression != NONE && compression != LZW && compression != DEFLATE && compression != ADOBE_DEFLATE
+                    && compression != PACKBITS) {
+                throw new IllegalArgumentException("DEM " + path + " uses unsupported compression " + compression
+                        + ", convert it with gdal_translate -co COMPRESS=DEFLATE");
+            }
+            predictor = (int) single(317, 1);
+            if (predictor < 1 || predictor > 3 || (predictor == 2 && type == SampleType.FLOAT32)
+                    || (predictor == 3 && type != SampleType.FLOAT32)) {
+                throw new IllegalArgumentException("DEM " + path + " uses unsupported predictor " + predictor);
+            }
+            if (isTiled()) {
+                segCols = (int) single(322, -1);
+                segRows = (int) single(323, -1);
+                offsets = values(324);
+                byteCounts = values(325);
+            } else {
+                segCols = width;
+                segRows = (int) Math.min(height, single(278, height));
+                offsets = values(273);
+                byteCounts = values(279);
+            }
+            if (segRows < 1 || segCols < 1) throw new ZipException("TIFF with empty strips or tiles");
+            segsAcross = (width + segCols - 1) / segCols;
+            long segments = (long) segsAcross * ((height + segRows - 1) / segRows);
+            if (offsets.length < segments || byteCounts.length < segments) {
+                throw new ZipException("TIFF has " + offsets.length + " segments, expected " + segments);
+            }
+            if (entries.containsKey(42113)) {
+                try {
+                    double value = Double.parseDouble(ascii(42113).trim());
+                    nodata = type == SampleType.FLOAT32 ? (float) value : value;
+                } catch (NumberFormatException e) {
+                    LOG.fine("Ignoring nodata value of " + path);
+                }
+            }
+        }
+
+        private void readGeoreference() throws IOException {
+            int modelType = 0, rasterType = 1; // 1 = pixel is area, 2 = pixel is point
+            if (entries.containsKey(34735)) {
+                long[] keys = values(34735);
+                for (int k = 4; k + 3 < keys.length; k += 4) {
+                    if (keys[k + 1] != 0) continue; // keys we need are stored inline
+                    if (keys[k] == 1024) modelType = (int) keys[k + 3];
+                    if (keys[k] == 1025) rasterType = (int) keys[k + 3];
+                }
+            }
+            if (modelType != 0 && modelType != 2) {
+                throw new IllegalArgumentException("DEM " + path + " is not in lat/lon, warp it with gdalwarp -t_srs EPSG:4326");
+            }
+            double cornerLat, cornerLon;
+            if (entries.containsKey(33550) && entries.containsKey(33922)) {
+                double[] scale = doubles(33550), tie = doubles(33922);
+                pixelLon = scale[0];
+                pixelLat = scale[1];
+                cornerLon = tie[3] - tie[0] * pixelLon;
+                cornerLat = tie[4] + tie[1] * pixelLat;
+            } else if (entries.containsKey(34264)) {
+                double[] m = doubles(34264);
+                if (m[1] != 0 || m[4] != 0) {
+                    throw new IllegalArgumentException("DEM " + path + " is rotated, warp it with gdalwarp -t_srs EPSG:4326");
+                }
+                pixelLon = m[0];
+                pixelLat = -m[5];
+                cornerLon = m[3];
+                cornerLat = m[7];
+            } else {
+                throw new IllegalArgumentException("DEM " + path + " has no georeference");
+            }
+            if (!(pixelLat > 0) || !(pixelLon > 0)) {
+                throw new IllegalArgumentException("DEM " + path + " has unsupported pixel size " + pixelLon + "x" + pixelLat);
+            }
+            if (Math.abs(cornerLon) > 360 || Math.abs(cornerLat) > 90 + pixelLat) {
+                throw new IllegalArgumentException("DEM " + path + " does not look like lat/lon, warp it with gdalwarp -t_srs EPSG:4326");
+            }
+            double half = rasterType == 2 ? 0 : 0.5;
+            originLat = cornerLat - half * pixelLat;
+            originLon = cornerLon + half * pixelLon;
+        }
+
+        private long single(int tag, long fallback) throws IOException {
+            return entries.containsKey(tag) ? values(tag)[0] : fallback;
+        }
+
+        private ByteBuffer valueBytes(int tag, int typeSize) throws IOException {
+            long[] entry = entries.get(tag);
+            long bytes = entry[1] * typeSize;
+            if (bytes > Integer.MAX_VALUE) throw new ZipException("TIFF tag " + tag + " is too large");
+            long inline = bigTiff ? 8 : 4;
+            long pos = entry[2];
+            if (bytes > inline) {
+                pos = bigTiff ? read(pos, 8).getLong() : read(pos, 4).getInt() & 0xFFFFFFFFL;
+            }
+            return read(pos, (int) bytes);
+        }
+
+        private static int typeSize(int fieldType) {
+            return switch (fieldType) {
+                case 1, 2, 6, 7 -> 1;
+                case 3, 8 -> 2;
+                case 4, 9, 11 -> 4;
+                case 5, 10, 12, 16, 17, 18 -> 8;
+                default -> throw new IllegalArgumentException("Unknown TIFF field type " + fieldType);
+            };
+        }
+
+        private long[] values(int tag) throws IOException {
+            long[] entry = entries.get(tag);
+            if (entry == null) throw new ZipException("TIFF tag " + tag + " missing");
+            int fieldType = (int) entry[0];
+            ByteBuffer buf = valueBytes(tag, typeSize(fieldType));
+            long[] out = new long[(int) entry[1]];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = switch (fieldType) {
+                    case 1, 7 -> buf.get() & 0xFF;
+                    case 6 -> buf.get();
+                    case 3 -> buf.getShort() & 0xFFFF;
+                    case 8 -> buf.getShort();
+                    case 4 -> buf.getInt() & 0xFFFFFFFFL;
+                    case 9 -> buf.getInt();
+                    case 16, 17, 18 -> buf.getLong();
+                    default -> throw new ZipException("TIFF tag " + tag + " is not an integer");
+                };
+            }
+            return out;
+        }
+
+        private double[] doubles(int tag) throws IOException {
+            long[] entry = entries.get(tag);
+            int fieldType = (int) entry[0];
+            if (fieldType != 12) throw new ZipException("TIFF tag " + tag + " is not a double");
+            double[] out = new double[(int) entry[1]];
+            valueBytes(tag, 8).asDoubleBuffer().get(out);
+            return out;
+        }
+
+        private String ascii(int tag) throws IOException {
+            ByteBuffer buf = valueBytes(tag, 1);
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            int end = 0;
+            while (end < bytes.length && bytes[end] != 0) end++;
+            return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(order == null ? ByteOrder.BIG_ENDIAN : order);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Unexpected end of " + path);
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+
+        private void inflate(ByteBuffer in, byte[] out) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(in);
+                int n = 0;
+                while (n < out.length && !inflater.finished()) {
+                    int k = inflater.inflate(out, n, out.length - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += k;
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt deflate segment in " + path + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // TIFF flavor of LZW: msb first codes of 9 to 12 bits, code width grows one code early
+        private static void lzw(ByteBuffer in, byte[] out) {
+            final int CLEAR = 256, EOI = 257;
+            int[] prefix = new int[4096];
+            byte[] suffix = new byte[4096], firstByte = new byte[4096];
+            int[] length = new int[4096];
+            for (int i = 0; i < 256; i++) {
+                suffix[i] = firstByte[i] = (byte) i;
+                length[i] = 1;
+            }
+            int next = 258, width = 9, old = -1, outPos = 0, bits = 0;
+            long bitBuf = 0;
+            while (outPos < out.length) {
+                while (bits < width && in.hasRemaining()) {
+                    bitBuf = (bitBuf << 8) | (in.get() & 0xFF);
+                    bits += 8;
+                }
+                if (bits < width) break;
+                int code = (int) ((bitBuf >>> (bits - width)) & ((1 << width) - 1));
+                bits -= width;
+                if (code == EOI) break;
+                if (code == CLEAR) {
+                    next = 258;
+                    width = 9;
+                    old = -1;
+                    continue;
+                }
+                if (old != -1) {
+                    if (code > next || next >= 4096) break; // corrupt
+                    prefix[next] = old;
+                    suffix[next] = code < next ? firstByte[code] : firstByte[old];
+                    firstByte[next] = firstByte[old];
+                    length[next] = length[old] + 1;
+                    next++;
+                    if (next >= (1 << width) - 1 && width < 12) width++;
+                } else if (code >= 256) {
+                    break; // first code after a clear must be a literal
+                }
+                // write the string of code back to front
+                int len = length[code];
+                for (int c = code, p = outPos + len - 1; c >= 0 && p >= outPos; c = c < 256 ? -1 : prefix[c], p--) {
+                    if (p < out.length) out[p] = suffix[c];
+                }
+                outPos += len;
+                old = code;
+            }
+        }
+
+        private static void packBits(ByteBuffer in, byte[] out) {
+            int outPos = 0;
+            while (in.hasRemaining() && outPos < out.length) {
+                int n = in.get();
+                if (n >= 0) {
+                    int len = Math.min(n + 1, Math.min(in.remaining(), out.length - outPos));
+                    in.get(out, outPos, len);
+                    outPos += len;
+                } else if (n != -128 && in.hasRemaining()) {
+                    byte b = in.get();
+                    int len = Math.min(1 - n, out.length - outPos);
+                    Arrays.fill(out, outPos, outPos + len, b);
+                    outPos += len;
+                }
+            }
+        }
+
+        // predictor 2: each sample of a row is stored as difference to the one before
+        private void undoHorizontalDifferencing(byte[] data, int rows) {
+            ByteBuffer buf = ByteBuffer.wrap(data).order(order);
+            int bytes = type.bytes;
+            for (int r = 0; r < rows; r++) {
+                int rowStart = r * segCols * bytes;
+                for (int i = 1; i < segCols; i++) {
+                    int p = rowStart + i * bytes;
+                    if (bytes == 2) {
+                        buf.putShort(p, (short) (buf.getShort(p) + buf.getShort(p - 2)));
+                    } else {
+                        buf.putInt(p, buf.getInt(p) + buf.getInt(p - 4));
+                    }
+                }
+            }
+        }
+
+        // predictor 3: the bytes of a row are differenced and grouped by significance, most significant first
+        private void undoFloatingPointDifferencing(byte[] data, int rows) {
+            int bytes = type.bytes;
+            int rowBytes = segCols * bytes;
+            byte[] tmp = new byte[rowBytes];
+            for (int r = 0; r < rows; r++) {
+                int off = r * rowBytes;
+                for (int i = 1; i < rowBytes; i++) {
+                    data[off + i] += data[off + i - 1];
+                }
+                for (int i = 0; i < segCols; i++) {
+                    for (int b = 0; b < bytes; b++) {
+                        int significance = order == ByteOrder.BIG_ENDIAN ? b : bytes - 1 - b;
+                        tmp[i * bytes + significance] = data[off + b * segCols + i];
+                    }
+                }
+                System.arraycopy(tmp, 0, data, off, rowBytes);
+            }
+        }
+    }
+}
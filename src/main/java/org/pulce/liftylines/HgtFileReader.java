@@ -15,23 +15,453 @@
 package org.pulce.liftylines;
 
 import java.io.*;
-import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
 public class HgtFileReader {
     public static Logger LOG = Logger.getLogger(HgtFileReader.class.getName());
 
-    public static short[][] readElevationData(Path tilesDir, LiftyBoundingBox boundingBox) {
+    public static final int TILE_SAMPLES_PER_DEGREE = 3600; // hgt tiles are 1 arcsec, 3601x3601 samples
+    private static final int CHUNK_TILE_ROWS = 1024; // 1 arcsec rows decoded at once before downsampling and packing
 
+    // The whole bbox, packed: only one chunk of rows is ever alive unpacked, in a raster of the given storage
+    public static PackedShortRaster readElevationData(ElevationSource source, LiftyBoundingBox boundingBox, Raster.Storage storage) {
+        List<? extends ElevationSource.Patch> patches = source.patches(boundingBox);
+        for (ElevationSource.Patch patch : patches) {
+            patch.ready(); // start all downloads at once
+        }
+
+        // Merge the required data from all tiles to one raster
+        PackedShortRaster stacked = new PackedShortRaster(boundingBox.getMaskRows(), boundingBox.getMaskCols());
+        ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (ShortRaster scratch = new ShortRaster(chunkRows(boundingBox), boundingBox.getMaskCols(), storage)) {
+            loadPackedRows(patches, boundingBox, stacked, 0, 0, stacked.rows, scratch, exec);
+        } finally {
+            shutdownAndWait(exec);
+            closeGzStreams(patches);
+        }
+        logDecodeStats(patches);
+        logPackStats(stacked);
+        return stacked;
+    }
+
+    /**
+     * Streams the elevation data of the bounding box in north-to-south bands instead of one giant array.
+     * Each band holds up to {@code bandRows} core rows plus {@code haloRows} rows above and below (clipped at
+     * the bbox edges), so neighborhood operations on the core rows see the same data as on the full grid.
+     * The band raster is closed once the consumer returns, consumers must copy whatever they want to keep.
+     * Bands are packed (see {@link PackedShortRaster}), decoded a chunk of rows at a time. Halo rows a band shares
+     * with the previous one are taken over as they are instead of being decoded again.
+     * With a mountainCutoff, areas that only influence cells above it are not decoded (see {@link TileSummary}):
+     * they read as some value above the cutoff instead of their real elevation. With a region, areas that only
+     * influence cells outside it are not even fetched, and bands without region rows are skipped altogether.
+     * The unpacked chunk of rows lives in a raster of the given storage.
+     */
+    public static void streamElevationBands(ElevationSource source, LiftyBoundingBox boundingBox, int bandRows, int haloRows,
+                                            Float mountainCutoff, Raster.Storage storage, Consumer<ElevationBand> consumer) {
+        if (bandRows < 1 || haloRows < 0) {
+            throw new IllegalArgumentException("Invalid band layout: " + bandRows + " rows with " + haloRows + " halo rows");
+        }
+        List<? extends ElevationSource.Patch> patches = source.patches(boundingBox);
+        if (mountainCutoff != null || boundingBox.region != null) {
+            planSkips(patches, boundingBox, haloRows, mountainCutoff);
+        }
+        for (ElevationSource.Patch patch : patches) {
+            if (!patch.skipped) patch.ready(); // start all downloads now, decoding waits for them band by band
+        }
+        int totalRows = boundingBox.getMaskRows();
+        // a band must at least cover its halo, otherwise the tail band is too thin for the tpi kernel
+        bandRows = Math.max(bandRows, haloRows + 1);
+
+        int cols = boundingBox.getMaskCols();
+        ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (ShortRaster scratch = new ShortRaster(Math.min(chunkRows(boundingBox), bandRows + 2 * haloRows), cols, storage)) {
+            PackedShortRaster previous = null;
+            int previousFirst = 0;
+            int coreStart = 0;
+            while (coreStart < totalRows) {
+                int coreEnd = Math.min(totalRows, coreStart + bandRows);
+                if (totalRows - coreEnd <= haloRows) {
+                    coreEnd = totalRows; // tail rows thinner than the halo are merged into the last band
+                }
+                if (boundingBox.region != null && !boundingBox.region.hasCells(coreStart, coreEnd)) {
+                    coreStart = coreEnd;
+                    continue; // nothing to compute here, masks stay empty
+                }
+                int firstRow = Math.max(0, coreStart - haloRows);
+                int endRow = Math.min(totalRows, coreEnd + haloRows);
+                PackedShortRaster band = new PackedShortRaster(endRow - firstRow, cols);
+                int shared = previous == null ? 0 : Math.max(0, Math.min(endRow, previousFirst + previous.rows) - firstRow);
+                if (shared > 0) {
+                    band.shareRows(previous, firstRow - previousFirst, 0, shared);
+                }
+                if (previous != null) {
+                    previous.close();
+                }
+                loadPackedRows(patches, boundingBox, band, firstRow, firstRow + shared, endRow, scratch, exec);
+                LOG.fine("Loaded elevation band rows " + coreStart + "-" + coreEnd + " of " + totalRows);
+                logPackStats(band);
+                consumer.accept(new ElevationBand(band, firstRow, coreStart, coreEnd));
+                previous = band; // closed once the next band has taken over its halo
+                previousFirst = firstRow;
+                coreStart = coreEnd;
+            }
+            if (previous != null) {
+                previous.close();
+            }
+        } finally {
+            shutdownAndWait(exec);
+            closeGzStreams(patches);
+        }
+        logDecodeStats(patches);
+    }
+
+    // Marks what need not be decoded, on a grid of BLOCK x BLOCK cells. A cell needs its tpi if it lies in the region
+    // and, with a cutoff, the min/max summaries say it may be at or below the cutoff. Needed cells are dilated by the
+    // kernel reach: patches touching none of the result are not even fetched, tile block rows touching none of it are
+    // skipped. Every cell reading a skipped sample is outside the region or above the cutoff, so its tpi is 0
+    // whatever the sample holds.
+    private static void planSkips(List<? extends ElevationSource.Patch> patches, LiftyBoundingBox boundingBox, int haloRows, Float mountainCutoff) {
+        final int S = TILE_SAMPLES_PER_DEGREE + 1;
+        final int G = TileSummary.BLOCK;
+        int f = boundingBox.arcsecPerSample;
+        // kernel reach in 1 arcsec samples, widened by the averaging window of coarser grids
+        double maxAbsLat = Math.max(Math.abs(boundingBox.minLatitude), Math.abs(boundingBox.maxLatitude));
+        int reachRows = (haloRows + 1) * f + f;
+        int reachCols = (int) Math.ceil((haloRows + 1) * f / Math.cos(Math.toRadians(maxAbsLat))) + f;
+        int fullRows = (boundingBox.getMaskRows() - 1) * f + 1;
+        int fullCols = (boundingBox.getMaskCols() - 1) * f + 1;
+        int gRows = (fullRows + G - 1) / G, gCols = (fullCols + G - 1) / G;
+        int dy = (reachRows + G - 1) / G, dx = (reachCols + G - 1) / G;
+
+        boolean[][] inRegion = regionCells(boundingBox, gRows, gCols, fullRows, fullCols);
+        if (boundingBox.region != null) {
+            boolean[][] regionReach = dilate(inRegion, dy, dx);
+            int dropped = 0;
+            for (ElevationSource.Patch patch : patches) {
+                patch.skipped = !anyCell(regionReach, patch.firstRowInArray, patch.firstRowInArray + patch.rows,
+                        patch.firstColInArray, patch.firstColInArray + patch.cols, fullRows, fullCols);
+                if (patch.skipped) dropped++;
+            }
+            LOG.fine("Region: skipping " + dropped + " of " + patches.size() + " elevation patches");
+        }
+
+        boolean[][] low = inRegion;
+        List<HgtTile> tiles = new ArrayList<>();
+        for (ElevationSource.Patch patch : patches) {
+            if (!patch.skipped && patch instanceof HgtTile tile && tile.storage != TileStorage.GZ) {
+                tiles.add(tile); // GZ has to be inflated from the start anyway, nothing to gain
+            }
+        }
+        if (mountainCutoff != null) {
+            low = new boolean[gRows][gCols];
+            // every fetch is started before the first summary is waited for, cold tiles download concurrently
+            List<CompletableFuture<TileSummary>> summaries = new ArrayList<>();
+            for (HgtTile tile : tiles) {
+                summaries.add(tile.ready().thenApply(TileSummary::of));
+            }
+            joinAll(summaries, "summarizing tiles");
+            for (int t = 0; t < tiles.size(); t++) {
+                HgtTile tile = tiles.get(t);
+                tile.summary = summaries.get(t).join();
+                for (int br = 0; br < tile.summary.blocksPerSide; br++) {
+                    for (int bc = 0; bc < tile.summary.blocksPerSide; bc++) {
+                        if (tile.summary.blockMin(br, bc) <= mountainCutoff) {
+                            markCells(low, tile.firstRowInArray + br * G, tile.firstRowInArray + Math.min(S, (br + 1) * G),
+                                    tile.firstColInArray + bc * G, tile.firstColInArray + Math.min(S, (bc + 1) * G), fullRows, fullCols);
+                        }
+                    }
+                }
+            }
+            // GZ tiles and other sources have no summary, treat them as low everywhere
+            for (ElevationSource.Patch patch : patches) {
+                if (!patch.skipped && !tiles.contains(patch)) {
+                    markCells(low, patch.firstRowInArray, patch.firstRowInArray + patch.rows, patch.firstColInArray,
+                            patch.firstColInArray + patch.cols, fullRows, fullCols);
+                }
+            }
+            for (int gr = 0; gr < gRows; gr++) {
+                for (int gc = 0; gc < gCols; gc++) low[gr][gc] &= inRegion[gr][gc];
+            }
+        }
+        boolean[][] needed = dilate(low, dy, dx);
+
+        int skipped = 0, total = 0;
+        for (HgtTile tile : tiles) {
+            tile.skipBlockRows = new boolean[(S + G - 1) / G];
+            int c0 = Math.max(0, tile.firstColInArray) / G;
+            int c1 = (Math.min(fullCols, tile.firstColInArray + S) - 1) / G;
+            for (int br = 0; br < tile.skipBlockRows.length; br++) {
+                int rowFrom = tile.firstRowInArray + br * G, rowTo = tile.firstRowInArray + Math.min(S, (br + 1) * G);
+                if (rowTo <= 0 || rowFrom >= fullRows) continue;
+                boolean skip = true;
+                for (int gr = Math.max(0, rowFrom) / G; skip && gr <= (Math.min(fullRows, rowTo) - 1) / G; gr++) {
+                    for (int gc = c0; gc <= c1; gc++) {
+                        if (needed[gr][gc]) {
+                            skip = false;
+                            break;
+                        }
+                    }
+                }
+                tile.skipBlockRows[br] = skip;
+                total++;
+                if (skip) skipped++;
+            }
+            // anything above the cutoff does, the real samples there are > cutoff too. Without cutoff only cells
+            // outside the region read skipped samples.
+            tile.skipFill = mountainCutoff == null ? 0 : (short) Math.min(Short.MAX_VALUE, Math.floor(mountainCutoff) + 1);
+        }
+        LOG.fine("Skipping " + skipped + " of " + total + " tile block rows");
+    }
+
+    // Cells holding a 1 arcsec sample of the region, i.e. the averaging window of a region grid cell. All without region.
+    private static boolean[][] regionCells(LiftyBoundingBox boundingBox, int gRows, int gCols, int fullRows, int fullCols) {
+        boolean[][] cells = new boolean[gRows][gCols];
+        if (boundingBox.region == null) {
+            for (boolean[] row : cells) Arrays.fill(row, true);
+            return cells;
+        }
+        int f = boundingBox.arcsecPerSample, half = f / 2;
+        for (int y = 0; y < boundingBox.region.rows; y++) {
+            int[] spans = boundingBox.region.spans(y);
+            for (int i = 0; i < spans.length; i += 2) {
+                markCells(cells, y * f - half, y * f - half + f, spans[i] * f - half, (spans[i + 1] - 1) * f - half + f,
+                        fullRows, fullCols);
+            }
+        }
+        return cells;
+    }
+
+    // Is any cell covering 1 arcsec rows [rowFrom, rowTo) and cols [colFrom, colTo) set? Clipped to the bbox.
+    private static boolean anyCell(boolean[][] cells, int rowFrom, int rowTo, int colFrom, int colTo, int fullRows, int fullCols) {
+        final int G = TileSummary.BLOCK;
+        rowFrom = Math.max(0, rowFrom);
+        rowTo = Math.min(fullRows, rowTo);
+        colFrom = Math.max(0, colFrom);
+        colTo = Math.min(fullCols, colTo);
+        for (int gr = rowFrom / G; rowFrom < rowTo && gr <= (rowTo - 1) / G; gr++) {
+            for (int gc = colFrom / G; colFrom < colTo && gc <= (colTo - 1) / G; gc++) {
+                if (cells[gr][gc]) return true;
+            }
+        }
+        return false;
+    }
+
+    // Marks the cells covering 1 arcsec rows [rowFrom, rowTo) and cols [colFrom, colTo), clipped to the bbox
+    private static void markCells(boolean[][] cells, int rowFrom, int rowTo, int colFrom, int colTo, int fullRows, int fullCols) {
+        final int G = TileSummary.BLOCK;
+        rowFrom = Math.max(0, rowFrom);
+        rowTo = Math.min(fullRows, rowTo);
+        colFrom = Math.max(0, colFrom);
+        colTo = Math.min(fullCols, colTo);
+        for (int gr = rowFrom / G; rowFrom < rowTo && gr <= (rowTo - 1) / G; gr++) {
+            for (int gc = colFrom / G; colFrom < colTo && gc <= (colTo - 1) / G; gc++) {
+                cells[gr][gc] = true;
+            }
+        }
+    }
+
+    // True wherever a true cell lies within dy rows and dx cols, rows first then cols
+    private static boolean[][] dilate(boolean[][] cells, int dy, int dx) {
+        int rows = cells.length, cols = rows == 0 ? 0 : cells[0].length;
+        boolean[][] tmp = new boolean[rows][cols], out = new boolean[rows][cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (!cells[r][c]) continue;
+                for (int y = Math.max(0, r - dy); y <= Math.min(rows - 1, r + dy); y++) tmp[y][c] = true;
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (!tmp[r][c]) continue;
+                for (int x = Math.max(0, c - dx); x <= Math.min(cols - 1, c + dx); x++) out[r][x] = true;
+            }
+        }
+        return out;
+    }
+
+    // Grid rows decoded at once into the scratch raster before packing, about CHUNK_TILE_ROWS 1 arcsec rows
+    private static int chunkRows(LiftyBoundingBox boundingBox) {
+        return Math.min(boundingBox.getMaskRows(), Math.max(1, CHUNK_TILE_ROWS / boundingBox.arcsecPerSample));
+    }
+
+    // Packs grid rows [fromRow, toRow) into target, whose row 0 is grid row targetFirstRow. Chunks of rows are
+    // decoded into scratch and then packed in parallel.
+    private static void loadPackedRows(List<? extends ElevationSource.Patch> patches, LiftyBoundingBox boundingBox,
+                                       PackedShortRaster target, int targetFirstRow, int fromRow, int toRow,
+                                       ShortRaster scratch, ExecutorService exec) {
+        int procs = Runtime.getRuntime().availableProcessors();
+        // skipped patches leave their rows alone, don't let them keep samples of the previous chunk
+        boolean holes = patches.stream().anyMatch(patch -> patch.skipped);
+        short[] zeros = new short[scratch.cols];
+        for (int r = fromRow; r < toRow; r += scratch.rows) {
+            int chunkFirst = r, chunkRows = Math.min(scratch.rows, toRow - r);
+            for (int i = 0; holes && i < chunkRows; i++) {
+                scratch.setRow(i, 0, zeros, 0, zeros.length);
+            }
+            loadRows(patches, boundingBox, scratch, chunkFirst, chunkRows, exec);
+            int step = Math.max(1, (chunkRows + procs - 1) / procs);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int s = 0; s < chunkRows; s += step) {
+                int sliceFrom = s, sliceTo = Math.min(chunkRows, s + step);
+                futures.add(CompletableFuture.runAsync(() -> {
+                    short[] row = new short[scratch.cols];
+                    for (int i = sliceFrom; i < sliceTo; i++) {
+                        scratch.getRow(i, 0, row, 0, row.length);
+                        target.setRow(chunkFirst + i - targetFirstRow, row, 0);
+                    }
+                }, exec));
+            }
+            joinAll(futures, "packing elevation data");
+        }
+    }
+
+    private static void logPackStats(PackedShortRaster raster) {
+        long raw = (long) raster.rows * raster.cols * Short.BYTES;
+        LOG.fine(String.format(Locale.US, "Packed elevation: %.1f MB instead of %.1f MB (%.1f bits per sample)",
+                raster.packedBytes() / 1e6, raw / 1e6, raster.packedBytes() * 16.0 / Math.max(1, raw / 2)));
+    }
+
+    // Fills target rows [0, targetRows) with grid rows [firstRow, firstRow + targetRows). At 1 arcsec the tiles are
+    // decoded straight into the target, coarser grids are decoded chunk by chunk at 1 arcsec and averaged down.
+    private static void loadRows(List<? extends ElevationSource.Patch> patches, LiftyBoundingBox boundingBox, ShortRaster target, int firstRow,
+                                 int targetRows, ExecutorService exec) {
+        int f = boundingBox.arcsecPerSample;
+        if (f == 1) {
+            dumpPatchesToArray(patches, target, firstRow, targetRows, exec);
+            return;
+        }
+        int half = f / 2;
+        int fullRows = (boundingBox.getMaskRows() - 1) * f + 1;
+        int chunkRows = Math.max(1, CHUNK_TILE_ROWS / f);
+        try (ShortRaster full = new ShortRaster(chunkRows * f, (target.cols - 1) * f + 1, target.storage)) {
+            for (int r = 0; r < targetRows; r += chunkRows) {
+                int chunkEnd = Math.min(targetRows, r + chunkRows);
+                int fullFirst = Math.max(0, (firstRow + r) * f - half);
+                int fullEnd = Math.min(fullRows, (firstRow + chunkEnd - 1) * f - half + f);
+                dumpPatchesToArray(patches, full, fullFirst, fullEnd - fullFirst, exec);
+                downsample(full, fullFirst, fullEnd, target, firstRow, r, chunkEnd, f, exec);
+            }
+        }
+    }
+
+    // Each grid sample becomes the mean of the f x f block of 1 arcsec samples around it, clipped at the bbox edges.
+    // Averaging instead of picking every f-th sample keeps narrow ridges and gullies from aliasing into the tpi.
+    private static void downsample(ShortRaster full, int fullFirst, int fullEnd, ShortRaster target, int firstRow,
+                                   int fromRow, int toRow, int f, ExecutorService exec) {
+        int procs = Runtime.getRuntime().availableProcessors();
+        int step = Math.max(1, (toRow - fromRow + procs - 1) / procs);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int s = fromRow; s < toRow; s += step) {
+            int sliceFrom = s, sliceTo = Math.min(toRow, s + step);
+            futures.add(CompletableFuture.runAsync(() -> {
+                int half = f / 2;
+                short[] in = new short[full.cols];
+                short[] out = new short[target.cols];
+                int[] colSums = new int[full.cols];
+                for (int r = sliceFrom; r < sliceTo; r++) {
+                    int y0 = Math.max(fullFirst, (firstRow + r) * f - half);
+                    int y1 = Math.min(fullEnd, (firstRow + r) * f - half + f);
+                    Arrays.fill(colSums, 0);
+                    for (int y = y0; y < y1; y++) {
+                        full.getRow(y - fullFirst, 0, in, 0, in.length);
+                        for (int x = 0; x < in.length; x++) colSums[x] += in[x];
+                    }
+                    for (int c = 0; c < out.length; c++) {
+                        int x0 = Math.max(0, c * f - half);
+                        int x1 = Math.min(in.length, c * f - half + f);
+                        long sum = 0;
+                        for (int x = x0; x < x1; x++) sum += colSums[x];
+                        out[c] = (short) Math.round(sum / (double) ((y1 - y0) * (x1 - x0)));
+                    }
+                    target.setRow(r, 0, out, 0, out.length);
+                }
+            }, exec));
+        }
+        joinAll(futures, "downsampling elevation data");
+    }
+
+    // Decodes all patches concurrently. Patches (and row slices of a patch) write to disjoint parts of the array,
+    // so no locking needed. Patches are sliced by rows to keep all cores busy even if a band touches few of them.
+    private static void dumpPatchesToArray(List<? extends ElevationSource.Patch> patches, ShortRaster array,
+                                           int arrayFirstRow, int arrayRows, ExecutorService exec) {
+        int procs = Runtime.getRuntime().availableProcessors();
+        int slicesPerPatch = Math.max(1, (procs + patches.size() - 1) / patches.size());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (ElevationSource.Patch patch : patches) {
+            int patchSlices = patch.splittable() ? slicesPerPatch : 1;
+            int fromRow = Math.max(arrayFirstRow, patch.firstRowInArray);
+            int toRow = Math.min(arrayFirstRow + arrayRows, patch.firstRowInArray + patch.rows);
+            if (fromRow >= toRow || patch.skipped) {
+                continue; // patch does not touch the requested rows or nothing needs them
+            }
+            int sliceRows = Math.max(1, (toRow - fromRow + patchSlices - 1) / patchSlices);
+            for (int s = fromRow; s < toRow; s += sliceRows) {
+                int sliceFrom = s, sliceTo = Math.min(toRow, s + sliceRows);
+                // decoding starts as soon as the tile is on disk, overlapping with pending downloads
+                futures.add(patch.ready().thenRunAsync(() -> patch.dumpDataToArray(array, arrayFirstRow, sliceFrom, sliceTo), exec));
+            }
+        }
+        joinAll(futures, "decoding elevation data");
+    }
+
+    private static void joinAll(List<? extends CompletableFuture<?>> futures, String what) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re; // keep UncheckedIOException & co. intact for the error handler
+            }
+            throw new RuntimeException("Execution aborted while " + what, e);
+        }
+    }
+
+    // Rasters are freed right after loading, so no decode task may still be running when we return (even on errors)
+    private static void shutdownAndWait(ExecutorService exec) {
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warning("Decoding tasks did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Normally closed once the last bbox row is inflated, this catches runs that end early
+    private static void closeGzStreams(List<? extends ElevationSource.Patch> patches) {
+        for (ElevationSource.Patch patch : patches) {
+            if (patch instanceof HgtTile tile) tile.closeGz();
+        }
+    }
+
+    private static void logDecodeStats(List<? extends ElevationSource.Patch> patches) {
+        for (ElevationSource.Patch patch : patches) {
+            long nanos = patch.decodeNanos.get();
+            long bytes = patch.decodedBytes.get();
+            if (nanos == 0) continue;
+            LOG.fine(String.format(Locale.US, "Decoded %s: %.1f MB in %d ms thread time (%.0f MB/s per thread)",
+                    patch.name, bytes / 1e6, nanos / 1_000_000, bytes * 1e3 / nanos));
+        }
+    }
+
+    // The hgt tiles overlapping the bounding box, see TileDownloader.patches
+    static List<? extends ElevationSource.Patch> createTiles(TileDownloader downloader, LiftyBoundingBox boundingBox) {
         // Create all tiles required for the bounding box
         int latStart = (int) Math.floor(boundingBox.minLatitude);
         int latEnd = (int) Math.ceil(boundingBox.maxLatitude) - 1;
@@ -40,104 +470,208 @@ public class HgtFileReader {
         List<HgtTile> tiles = new ArrayList<>();
         for (int lat = latStart; lat <= latEnd; lat++) {
             for (int lon = lonStart; lon <= lonEnd; lon++) {
-                tiles.add(new HgtTile(lat, lon, boundingBox, tilesDir));
+                tiles.add(new HgtTile(lat, lon, boundingBox, downloader));
             }
         }
+        return tiles;
+    }
 
-        // Merge the required data from all tiles to one array
-        short[][] stacked = new short[boundingBox.getMaskRows()][boundingBox.getMaskCols()]; // Oida, memory city!
-        for (HgtTile tile : tiles) {
-            tile.dumpDataToArray(stacked);
-        }
+    public static class ElevationBand {
+        public final PackedShortRaster data; // row 0 is global row firstRow
+        public final int firstRow;
+        public final int coreStart;    // global rows [coreStart, coreEnd) belong to this band, the rest is halo
+        public final int coreEnd;
 
-        return stacked;
+        private ElevationBand(PackedShortRaster data, int firstRow, int coreStart, int coreEnd) {
+            this.data = data;
+            this.firstRow = firstRow;
+            this.coreStart = coreStart;
+            this.coreEnd = coreEnd;
+        }
     }
 
-    private static class HgtTile {
+    private static class HgtTile extends ElevationSource.Patch {
         public int lat;
         public int lon;
-        public Path path;
-        public int firstRowInArray;
-        public int firstColInArray;
+        private final TileDownloader downloader;
+        private CompletableFuture<Path> file; // fetched on first use, tiles the region doesn't need never are
+        public TileStorage storage;
+        public TileSummary summary;      // only loaded when a mountain cutoff is planned
+        public boolean[] skipBlockRows;  // block rows of TileSummary.BLOCK tile rows that need not be decoded
+        public short skipFill;
+        private final int bboxEndRow;    // tile rows from here on are south of the bbox
+        private InputStream gz;          // GZ only: rows come north to south, so one stream serves all chunks and bands
+        private int gzRow;               // next tile row gz delivers
 
-        private static final String BASE_URL = "https://s3.amazonaws.com/elevation-tiles-prod/skadi/";
-
-        private HgtTile(int lat, int lon, LiftyBoundingBox boundingBox, Path tilesDir) {
+        private HgtTile(int lat, int lon, LiftyBoundingBox boundingBox, TileDownloader downloader) {
+            // always in 1 arcsec samples, coarser grids are derived from those
+            super(TileDownloader.tileFileName(lat, lon),
+                    (int) Math.round((boundingBox.maxLatitude - (lat + 1)) * TILE_SAMPLES_PER_DEGREE),
+                    (int) Math.round((lon - boundingBox.minLongitude) * TILE_SAMPLES_PER_DEGREE),
+                    TILE_SAMPLES_PER_DEGREE + 1, TILE_SAMPLES_PER_DEGREE + 1);
             this.lat = lat;
             this.lon = lon;
-            this.path = getTilePath(lat, lon, tilesDir);
-            firstRowInArray = (int) Math.round((boundingBox.maxLatitude - (lat + 1)) * LiftyBoundingBox.SAMPLES_PER_DEGREE);
-            firstColInArray = (int) Math.round((lon - boundingBox.minLongitude) * LiftyBoundingBox.SAMPLES_PER_DEGREE);
+            this.storage = TileStorage.fromPath(downloader.localTile(lat, lon));
+            this.downloader = downloader;
+            this.bboxEndRow = Math.min(rows, (boundingBox.getMaskRows() - 1) * boundingBox.arcsecPerSample + 1 - firstRowInArray);
         }
 
-        private void dumpDataToArray(short[][] array) {
+        @Override
+        public synchronized CompletableFuture<Path> ready() {
+            if (file == null) {
+                file = downloader.fetch(lat, lon);
+            }
+            return file;
+        }
+
+        @Override
+        public boolean splittable() {
+            return storage.splittable;
+        }
+
+        @Override
+        public void dumpDataToArray(ShortRaster array, int arrayFirstRow, int fromRow, int toRow) {
             // total samples per tile side
-            final int S = LiftyBoundingBox.SAMPLES_PER_DEGREE + 1;
+            final int S = TILE_SAMPLES_PER_DEGREE + 1;
             // bytes in one full row of S samples
             final int rowBytes = S * Short.BYTES;
 
-            int arrayRows = array.length, arrayCols = array[0].length;
+            // tileRow 0 = northmost sample, tileRow S-1 = southmost sample
+            int firstTileRow = Math.max(0, fromRow - firstRowInArray);
+            int endTileRow = Math.min(S, toRow - firstRowInArray);
+            if (firstTileRow >= endTileRow) {
+                return; // tile does not touch the requested rows
+            }
+            long start = System.nanoTime();
+            Path path = ready().join();
 
-            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
-                MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-                buf.order(ByteOrder.BIG_ENDIAN);
-
-                // tileRow 0 = northmost sample, tileRow S-1 = southmost sample
-                for (int tileRow = 0; tileRow < S; tileRow++) {
-                    int globalRow = firstRowInArray + tileRow;
-                    if (globalRow < 0 || globalRow >= arrayRows) {
-                        // skip entire row (all S samples)
-                        buf.position(buf.position() + rowBytes);
-                        continue;
-                    }
-                    // read every short in this row
-                    for (int tileCol = 0; tileCol < S; tileCol++) {
-                        short elev = buf.getShort();
-                        int globalCol = firstColInArray + tileCol;
-                        if (globalCol >= 0 && globalCol < arrayCols) {
-                            array[globalRow][globalCol] = elev;
+            try {
+                if (skipBlockRows == null) {
+                    dumpRows(path, array, arrayFirstRow, firstTileRow, endTileRow);
+                    decodedBytes.addAndGet((long) (endTileRow - firstTileRow) * rowBytes);
+                } else {
+                    // runs of block rows that are decoded or skipped together
+                    final int G = TileSummary.BLOCK;
+                    for (int r = firstTileRow; r < endTileRow; ) {
+                        boolean skip = skipBlockRows[r / G];
+                        int runEnd = r;
+                        while (runEnd < endTileRow && skipBlockRows[runEnd / G] == skip) {
+                            runEnd = Math.min(endTileRow, (runEnd / G + 1) * G);
                         }
+                        if (skip) {
+                            fillRows(array, arrayFirstRow, r, runEnd);
+                        } else {
+                            dumpRows(path, array, arrayFirstRow, r, runEnd);
+                            decodedBytes.addAndGet((long) (runEnd - r) * rowBytes);
+                        }
+                        r = runEnd;
                     }
                 }
             } catch (IOException e) {
                 throw new UncheckedIOException("Read error while processing " + path, e);
             }
+            decodeNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        private void dumpRows(Path path, ShortRaster array, int arrayFirstRow, int firstTileRow, int endTileRow) throws IOException {
+            switch (storage) {
+                case HGT -> dumpMappedRows(path, array, arrayFirstRow, firstTileRow, endTileRow);
+                case GZ -> dumpGzRows(path, array, arrayFirstRow, firstTileRow, endTileRow);
+                case BLOCKS -> {
+                    try (BlockTileCodec.Reader reader = new BlockTileCodec.Reader(path)) {
+                        reader.readRows(firstTileRow, endTileRow, (tileRow, samples) ->
+                                copyRow(samples, array, firstRowInArray + tileRow - arrayFirstRow));
+                    }
+                }
+                case CHUNKS -> {
+                    // only the chunks holding bbox columns are touched
+                    try (ChunkedTileCodec.Reader reader = new ChunkedTileCodec.Reader(path)) {
+                        reader.readRect(firstTileRow, endTileRow, firstCol(), endCol(array), (tileRow, tileCol, samples, offset, length) ->
+                                array.setRow(firstRowInArray + tileRow - arrayFirstRow, firstColInArray + tileCol, samples, offset, length));
+                    }
+                }
+            }
+        }
+
+        private void fillRows(ShortRaster array, int arrayFirstRow, int firstTileRow, int endTileRow) {
+            int from = firstCol(), to = endCol(array);
+            if (from >= to) return;
+            short[] fill = new short[to - from];
+            Arrays.fill(fill, skipFill);
+            for (int tileRow = firstTileRow; tileRow < endTileRow; tileRow++) {
+                array.setRow(firstRowInArray + tileRow - arrayFirstRow, firstColInArray + from, fill, 0, fill.length);
+            }
         }
 
-        private static Path getTilePath(int lat, int lon, Path tilesDir) {
-            // build normalized name
-            char latHem = lat >= 0 ? 'N' : 'S';
-            char lonHem = lon >= 0 ? 'E' : 'W';
-            String fileName = String.format("%c%02d%c%03d.hgt",
-                    latHem, Math.abs(lat),
-                    lonHem, Math.abs(lon));
-
-            Path localFile = tilesDir.resolve(fileName);
-            if (Files.exists(localFile)) {
-                LOG.fine("Using available hgt file " + localFile);
-                return localFile;
-            }
-            // download + decompress in one go
-            String awsDir = String.format("%c%02d/", latHem, Math.abs(lat));
-            String gzName = fileName + ".gz";
-            String url = BASE_URL + awsDir + gzName;
-            LOG.info("Downloading " + url);
-
-            try (InputStream in = URI.create(url).toURL().openStream();
-                 BufferedInputStream bin = new BufferedInputStream(in);
-                 GZIPInputStream gis = new GZIPInputStream(bin);
-                 OutputStream out = Files.newOutputStream(localFile,
-                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-
-                byte[] buffer = new byte[8192];
-                int len;
-                while ((len = gis.read(buffer)) > 0) {
-                    out.write(buffer, 0, len);
+        // Maps only the requested rows and copies only the bbox columns of each, big-endian to native in one go
+        private void dumpMappedRows(Path path, ShortRaster array, int arrayFirstRow, int firstTileRow, int endTileRow) throws IOException {
+            final int S = TILE_SAMPLES_PER_DEGREE + 1;
+            final long rowBytes = (long) S * Short.BYTES;
+            int from = firstCol(), to = endCol(array);
+            if (from >= to) return;
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, firstTileRow * rowBytes,
+                        (endTileRow - firstTileRow) * rowBytes);
+                try {
+                    ShortBuffer shorts = buf.order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+                    for (int tileRow = firstTileRow; tileRow < endTileRow; tileRow++) {
+                        array.setRow(firstRowInArray + tileRow - arrayFirstRow, firstColInArray + from,
+                                shorts, (tileRow - firstTileRow) * S + from, to - from);
+                    }
+                } finally {
+                    Raster.release(buf); // don't leave tile mappings around until some gc finds them
+                }
+            }
+        }
+
+        // gzip is not seekable: the stream stays open at the next row, so consecutive chunks and bands only inflate
+        // what lies in between instead of starting over. Only a request behind it reopens the tile.
+        private synchronized void dumpGzRows(Path path, ShortRaster array, int arrayFirstRow, int firstTileRow, int endTileRow) throws IOException {
+            final int S = TILE_SAMPLES_PER_DEGREE + 1;
+            byte[] rowBytes = new byte[S * Short.BYTES];
+            ShortBuffer shorts = ByteBuffer.wrap(rowBytes).order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+            int from = firstCol(), to = endCol(array);
+            try {
+                if (gz == null || firstTileRow < gzRow) {
+                    closeGz();
+                    gz = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+                    gzRow = 0;
+                }
+                gz.skipNBytes((long) (firstTileRow - gzRow) * rowBytes.length);
+                gzRow = firstTileRow;
+                for (int tileRow = firstTileRow; tileRow < endTileRow; tileRow++) {
+                    if (gz.readNBytes(rowBytes, 0, rowBytes.length) != rowBytes.length) {
+                        throw new EOFException("Unexpected end of " + path);
+                    }
+                    gzRow++;
+                    if (from < to) {
+                        array.setRow(firstRowInArray + tileRow - arrayFirstRow, firstColInArray + from, shorts, from, to - from);
+                    }
                 }
-                return localFile;
+            } catch (IOException e) {
+                closeGz();
+                throw e;
+            }
+            if (gzRow >= bboxEndRow) {
+                closeGz(); // nothing further south is ever requested
+            }
+        }
 
+        private synchronized void closeGz() {
+            if (gz == null) return;
+            try {
+                gz.close();
             } catch (IOException e) {
-                throw new UncheckedIOException("Failed to download/decompress " + url, e);
+                LOG.fine("Closing " + name + " failed: " + e);
+            }
+            gz = null;
+        }
+
+        // Copies the part of a full tile row that falls into the bbox
+        private void copyRow(short[] samples, ShortRaster target, int targetRow) {
+            int from = firstCol(), to = endCol(target);
+            if (from < to) {
+                target.setRow(targetRow, firstColInArray + from, samples, from, to - from);
             }
         }
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.util.Arrays;
+
+/**
+ * The tpi cutoffs are nested thresholds on the same value, so instead of one mask per cutoff every cell stores its
+ * level: how many of the cutoffs (in ascending order) it exceeds, 0 = none. One byte per cell, whatever the number
+ * of cutoffs. The mask of a single cutoff is derived on demand, see {@link #extractMask}.
+ * See Raster for the memory layout.
+ */
+public class LevelRaster extends Raster {
+    public final double[] cutoffs; // in the order given, mask i is the one of cutoffs[i]
+    private final int[] minLevels; // cells of cutoff i's mask have at least this level
+
+    public LevelRaster(int rows, int cols, double[] cutoffs, Storage storage) {
+        super(rows, cols, 1, 0, storage);
+        if (cutoffs.length > 255) {
+            throw new IllegalArgumentException("At most 255 cutoffs, got " + cutoffs.length);
+        }
+        this.cutoffs = cutoffs.clone();
+        double[] sorted = cutoffs.clone();
+        Arrays.sort(sorted);
+        minLevels = new int[cutoffs.length];
+        for (int i = 0; i < cutoffs.length; i++) {
+            int below = 0;
+            while (sorted[below] < cutoffs[i]) below++;
+            minLevels[i] = below + 1; // duplicates: exceeding one means exceeding all of them
+        }
+    }
+
+    // Cutoffs in ascending order, the level of a cell is the number of these it exceeds
+    public double[] sortedCutoffs() {
+        double[] sorted = cutoffs.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    public int get(int row, int col) {
+        return segments[segment(row)].get(offset(row, col)) & 0xFF;
+    }
+
+    public void set(int row, int col, int level) {
+        segments[segment(row)].put(offset(row, col), (byte) level);
+    }
+
+    public void getRow(int row, int fromCol, byte[] dst, int dstOffset, int length) {
+        segments[segment(row)].get(offset(row, fromCol), dst, dstOffset, length);
+    }
+
+    public void setRow(int row, int fromCol, byte[] src, int srcOffset, int length) {
+        segments[segment(row)].put(offset(row, fromCol), src, srcOffset, length);
+    }
+
+    // Overwrites mask with the cells exceeding cutoffs[cutoffIndex], the mask must have the same size
+    public void extractMask(int cutoffIndex, MaskRaster mask) {
+        if (mask.rows != rows || mask.cols != cols) {
+            throw new IllegalArgumentException("Mask of " + mask.rows + "x" + mask.cols + " for levels of " + rows + "x" + cols);
+        }
+        int minLevel = minLevels[cutoffIndex];
+        byte[] levels = new byte[cols];
+        long[] words = new long[mask.words];
+        for (int row = 0; row < rows; row++) {
+            getRow(row, 0, levels, 0, cols);
+            Arrays.fill(words, 0);
+            for (int col = 0; col < cols; col++) {
+                if ((levels[col] & 0xFF) >= minLevel) words[(col + 1) >>> 6] |= 1L << (col + 1);
+            }
+            mask.setWords(row, words);
+        }
+    }
+}
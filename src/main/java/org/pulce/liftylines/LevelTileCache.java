@@ -0,0 +1,123 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Tpi levels of whole 1° tiles kept on disk between runs, so overlapping or shifted bounding boxes only compute the
+ * tiles they haven't seen before. A tile's file holds the levels of its own samples (lat in [lat, lat + 1), lon in
+ * [lon, lon + 1)), deflated: one byte per sample, mostly runs of level 0.
+ * Files are named after the tile and a hash of the key, the full key is stored in the file and checked on reading:
+ * everything the levels depend on (resolution, radii, kernel shape, cutoffs, mountain cutoff, ...) goes into it.
+ * The directory is a {@link TileCache}, shareable between concurrent runs and kept below its size cap.
+ */
+public class LevelTileCache {
+    public static Logger LOG = Logger.getLogger(LevelTileCache.class.getName());
+
+    private static final int MAGIC = 0x4C4C5631; // "LLV1"
+
+    public final Path dir;
+    private final TileCache cache;
+
+    public LevelTileCache(Path dir, long maxBytes) {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Creating level cache directory " + dir + " failed", e);
+        }
+        this.dir = dir;
+        this.cache = new TileCache(dir, maxBytes);
+    }
+
+    /**
+     * Levels of the tile's rows x cols samples, row 0 = north. Read from the cache, or computed and stored if not
+     * there yet (or stored under a different key).
+     */
+    public byte[][] levels(int lat, int lon, String key, int rows, int cols, Supplier<byte[][]> compute) {
+        String tileName = TileDownloader.tileName(lat, lon);
+        Path file = dir.resolve(String.format("%s.%08x.levels", tileName, key.hashCode()));
+        byte[][] levels;
+        try (Closeable ignored = cache.pin(tileName)) {
+            levels = read(file, key, rows, cols);
+            if (levels != null) {
+                LOG.fine("Using cached levels of " + tileName);
+                return levels;
+            }
+            levels = cache.fill(tileName, () -> {
+                byte[][] done = read(file, key, rows, cols);
+                if (done != null) return done; // another run was faster
+                LOG.fine("Computing levels of " + tileName);
+                byte[][] computed = compute.get();
+                write(file, key, computed);
+                return computed;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot cache levels of " + tileName + " in " + dir, e);
+        }
+        try {
+            cache.evict();
+        } catch (IOException e) {
+            LOG.warning("Level cache eviction failed: " + e.getMessage());
+        }
+        return levels;
+    }
+
+    // null if there is no such file or it was written for another key (hash collision) or size
+    private static byte[][] read(Path file, String key, int rows, int cols) throws IOException {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key) || in.readInt() != rows || in.readInt() != cols) {
+                return null;
+            }
+            byte[][] levels = new byte[rows][cols];
+            for (byte[] row : levels) {
+                in.readFully(row);
+            }
+            return levels;
+        } catch (EOFException | ZipException | NoSuchFileException e) {
+            return null; // evicted meanwhile, or damaged: computed again
+        }
+    }
+
+    // Written to a temp file and moved into place, a crash never leaves a truncated file behind
+    private void write(Path file, String key, byte[][] levels) throws IOException {
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeInt(levels.length);
+                out.writeInt(levels.length == 0 ? 0 : levels[0].length);
+                for (byte[] row : levels) {
+                    out.write(row);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -16,30 +16,53 @@ package org.pulce.liftylines;
 
 import org.mapsforge.core.model.BoundingBox;
 
+/**
+ * Bounding box snapped to the processing grid. The grid spacing is arcsecPerSample (1 = full hgt resolution,
+ * 3 = SRTM3-like, ...), all rows/cols and mask coordinates are in grid samples of that spacing.
+ * Built from a {@link Region}, it spans the region's envelope and carries the rasterized region: cells outside are
+ * left alone by every stage.
+ */
 public class LiftyBoundingBox extends BoundingBox {
-    public static int SAMPLES_PER_DEGREE = 3600;
+    public final int arcsecPerSample;
+    public final int samplesPerDegree;
+    public final RegionMask region; // null = the whole rectangle
 
     public double originLat;
     public double originLon;
 
     // Public entry point: raw inputs
     public LiftyBoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+        this(minLat, minLon, maxLat, maxLon, 1);
+    }
+
+    public LiftyBoundingBox(double minLat, double minLon, double maxLat, double maxLon, int arcsecPerSample) {
+        this(minLat, minLon, maxLat, maxLon, arcsecPerSample, null);
+    }
+
+    public LiftyBoundingBox(Region region, int arcsecPerSample) {
+        this(region.minLat, region.minLon, region.maxLat, region.maxLon, arcsecPerSample, region);
+    }
+
+    private LiftyBoundingBox(double minLat, double minLon, double maxLat, double maxLon, int arcsecPerSample, Region region) {
         super(
-                validateAndRoundMinLat(minLat, maxLat),
-                validateAndRoundMinLon(minLon, maxLon),
-                validateAndRoundMaxLat(maxLat, minLat),
-                validateAndRoundMaxLon(maxLon, minLon)
+                validateAndRoundMinLat(minLat, maxLat, toSamplesPerDegree(arcsecPerSample)),
+                validateAndRoundMinLon(minLon, maxLon, toSamplesPerDegree(arcsecPerSample)),
+                validateAndRoundMaxLat(maxLat, minLat, toSamplesPerDegree(arcsecPerSample)),
+                validateAndRoundMaxLon(maxLon, minLon, toSamplesPerDegree(arcsecPerSample))
         );
-        originLat = maxLatitude + 0.5 / SAMPLES_PER_DEGREE;
-        originLon = minLongitude - 0.5 / SAMPLES_PER_DEGREE;
+        this.arcsecPerSample = arcsecPerSample;
+        this.samplesPerDegree = toSamplesPerDegree(arcsecPerSample);
+        originLat = maxLatitude + 0.5 / samplesPerDegree;
+        originLon = minLongitude - 0.5 / samplesPerDegree;
+        this.region = region == null ? null : region.rasterize(this);
     }
 
     public double getLatitudeFromY(int y) {
-        return originLat - (double) y / SAMPLES_PER_DEGREE;
+        return originLat - (double) y / samplesPerDegree;
     }
 
     public double getLongitudeFromX(int x) {
-        return originLon + (double) x / SAMPLES_PER_DEGREE;
+        return originLon + (double) x / samplesPerDegree;
     }
 
     public double getDimension() {
@@ -47,39 +70,47 @@ public class LiftyBoundingBox extends BoundingBox {
     }
 
     public int getMaskRows() {
-        return (int) Math.round((this.maxLatitude - this.minLatitude) * SAMPLES_PER_DEGREE + 1);
+        return (int) Math.round((this.maxLatitude - this.minLatitude) * samplesPerDegree + 1);
     }
 
     public int getMaskCols() {
-        return (int) Math.round((this.maxLongitude - this.minLongitude) * SAMPLES_PER_DEGREE + 1);
+        return (int) Math.round((this.maxLongitude - this.minLongitude) * samplesPerDegree + 1);
     }
 
-    private static double validateAndRoundMinLat(double minLat, double maxLat) {
+    private static double validateAndRoundMinLat(double minLat, double maxLat, int samplesPerDegree) {
         if (minLat >= maxLat) throw new IllegalArgumentException("minLat ≥ maxLat");
         if (minLat < -90 || minLat > 90) throw new IllegalArgumentException("lat out of [-90,90]");
-        return roundToSeconds(minLat);
+        return roundToGrid(minLat, samplesPerDegree);
     }
 
-    private static double validateAndRoundMaxLat(double maxLat, double minLat) {
+    private static double validateAndRoundMaxLat(double maxLat, double minLat, int samplesPerDegree) {
         if (maxLat <= minLat) throw new IllegalArgumentException("maxLat ≤ minLat");
         if (maxLat < -90 || maxLat > 90) throw new IllegalArgumentException("lat out of [-90,90]");
-        return roundToSeconds(maxLat);
+        return roundToGrid(maxLat, samplesPerDegree);
     }
 
-    private static double validateAndRoundMinLon(double minLon, double maxLon) {
+    private static double validateAndRoundMinLon(double minLon, double maxLon, int samplesPerDegree) {
         if (minLon >= maxLon) throw new IllegalArgumentException("minLon ≥ maxLon");
         if (minLon < -180 || minLon > 180) throw new IllegalArgumentException("lon out of [-180,180]");
-        return roundToSeconds(minLon);
+        return roundToGrid(minLon, samplesPerDegree);
     }
 
-    private static double validateAndRoundMaxLon(double maxLon, double minLon) {
+    private static double validateAndRoundMaxLon(double maxLon, double minLon, int samplesPerDegree) {
         if (maxLon <= minLon) throw new IllegalArgumentException("maxLon ≤ minLon");
         if (maxLon < -180 || maxLon > 180) throw new IllegalArgumentException("lon out of [-180,180]");
-        return roundToSeconds(maxLon);
+        return roundToGrid(maxLon, samplesPerDegree);
+    }
+
+    // grid lines have to fall on whole degrees, otherwise tile borders end up between samples
+    private static int toSamplesPerDegree(int arcsecPerSample) {
+        if (arcsecPerSample < 1 || HgtFileReader.TILE_SAMPLES_PER_DEGREE % arcsecPerSample != 0) {
+            throw new IllegalArgumentException("Resolution of " + arcsecPerSample + " arcsec does not divide 3600");
+        }
+        return HgtFileReader.TILE_SAMPLES_PER_DEGREE / arcsecPerSample;
     }
 
-    private static double roundToSeconds(double coord) {
+    private static double roundToGrid(double coord, int samplesPerDegree) {
         // 🍁 math, baby
-        return Math.round(coord * SAMPLES_PER_DEGREE) / (double) SAMPLES_PER_DEGREE;
+        return Math.round(coord * samplesPerDegree) / (double) samplesPerDegree;
     }
 }
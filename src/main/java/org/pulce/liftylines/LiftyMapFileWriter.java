@@ -84,13 +84,18 @@ public class LiftyMapFileWriter {
         //processor = HDTileBasedDataProcessor.newInstance(config); // Does not help with memory issues
     }
 
-    public void writeMapFileFromMasks(boolean[][][] masks) {
+    // One cutoff after the other, its mask is derived from the levels into a single reused working mask
+    public void writeMapFileFromLevels(LevelRaster levels) {
         int polyCount = 0;
-        for (int i = 0; i < masks.length; i++) {
-            boolean[][] mask = masks[i];
-            for (int yy = 0; yy < mask.length; yy++) {
-                for (int xx = 0; xx < mask[yy].length; xx++) {
-                    if (mask[yy][xx]) {
+        RegionMask region = boundingBox.region;
+        try (MaskRaster mask = new MaskRaster(levels.rows, levels.cols, levels.storage)) {
+            for (int i = 0; i < levels.cutoffs.length; i++) {
+                levels.extractMask(i, mask);
+                for (int yy = 0; yy < mask.rows; yy++) {
+                    // nothing is set outside the region
+                    int endX = region == null ? mask.cols : region.rowEnd(yy);
+                    for (int xx = mask.nextSetBit(yy, region == null ? 0 : region.rowStart(yy), endX); xx < endX;
+                         xx = mask.nextSetBit(yy, xx + 1, endX)) {
                         Polygon polygon = new Polygon(new IntCoord(yy, xx), i + 1);
                         polygon.tracePolygonFromMask(mask);
                         processPolygon(polygon);
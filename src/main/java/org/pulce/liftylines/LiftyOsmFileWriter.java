@@ -33,11 +33,15 @@ public class LiftyOsmFileWriter {
         this.boundingBox = boundingBox;
     }
 
-    public void writeOsmFileFromMasks(boolean[][][] masks) {
+    public void writeOsmFileFromLevels(LevelRaster levels) {
         ArrayList<ArrayList<Polygon>> allPolygons = new ArrayList<>();
-        for (int i = 0; i < masks.length; i++) {
-            ArrayList<Polygon> polygons = Polygon.createPolygonTreeFromMask(masks[i], i + 1);
-            allPolygons.add(polygons);
+        // the mask of each cutoff is derived from the levels into the same working mask
+        try (MaskRaster mask = new MaskRaster(levels.rows, levels.cols, levels.storage)) {
+            for (int i = 0; i < levels.cutoffs.length; i++) {
+                levels.extractMask(i, mask);
+                ArrayList<Polygon> polygons = Polygon.createPolygonTreeFromMask(mask, i + 1, boundingBox.region);
+                allPolygons.add(polygons);
+            }
         }
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileManager.osmOutputFile.toFile()))) {
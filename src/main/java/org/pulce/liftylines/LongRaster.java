@@ -0,0 +1,36 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.nio.LongBuffer;
+
+// Ellipse sums of the fft kernel, see Raster for the memory layout
+class LongRaster extends Raster {
+    private final LongBuffer[] views;
+
+    LongRaster(int rows, int cols, Storage storage) {
+        super(rows, cols, Long.BYTES, 0, storage);
+        views = new LongBuffer[segments.length];
+        for (int s = 0; s < segments.length; s++) views[s] = segments[s].asLongBuffer();
+    }
+
+    public void getRow(int row, int fromCol, long[] dst, int dstOffset, int length) {
+        views[segment(row)].get(offset(row, fromCol), dst, dstOffset, length);
+    }
+
+    public void setRow(int row, int fromCol, long[] src, int srcOffset, int length) {
+        views[segment(row)].put(offset(row, fromCol), src, srcOffset, length);
+    }
+}
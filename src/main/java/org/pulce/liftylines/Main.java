@@ -54,6 +54,10 @@ public class Main implements Runnable {
             defaultValue = "47,12,48,13")
     double[] bbox; // must be length 4 if provided
 
+    @Option(names = "--region",
+            description = "Polygon to restrict the map to: a .geojson or .wkt file, or inline WKT. The bbox is taken from its envelope, --bbox is ignored")
+    String region;
+
     @Option(names = "--mountain-cutoff",
             description = "Mountain cutoff for prominence calculation in meters",
             defaultValue = "1000")
@@ -84,6 +88,29 @@ public class Main implements Runnable {
             defaultValue = "15.0")
     float radiusLarge;
 
+    @Option(names = "--tpi-kernel",
+            description = "EXACT ellipse means, or BOX: approximated by box filters, constant cost per cell whatever the radius. BOX logs its error against EXACT",
+            defaultValue = "EXACT")
+    TpiCalculator.Kernel tpiKernel;
+
+    @Option(names = "--tpi-pyramid",
+            description = "Evaluate large radii (32+ samples) on a 2x or 4x coarser grid and interpolate, about as fast as small radii. Logs its error against the exact result")
+    boolean tpiPyramid = false;
+
+    @Option(names = "--tpi-cache",
+            description = "Keep the levels of every 1° tile in levels/ of the tile directory, later runs with the same tpi settings only compute tiles not seen before. Tiles are computed whole, around the bbox border the tpi sees the terrain beyond it")
+    boolean tpiCache = false;
+
+    @Option(names = "--tpi-cache-size",
+            description = "Size limit of the --tpi-cache levels directory in MB, on top of --tile-cache-size. Least recently used tiles are deleted beyond it. 0 means no limit",
+            defaultValue = "0")
+    long tpiCacheSize;
+
+    @Option(names = "--resolution",
+            description = "Grid spacing in arc seconds, 1 is full resolution, 3 or more trade detail for speed and memory on large areas",
+            defaultValue = "1")
+    int resolution;
+
     @Option(names = "--zoom-min",
             description = "Defines minimum zoom level for liftylines to show up in XCTrack",
             defaultValue = "11")
@@ -120,6 +147,45 @@ public class Main implements Runnable {
             defaultValue = "11")
     byte simplificationMaxZoom;
 
+    @Option(names = "--band-rows",
+            description = "Number of elevation rows loaded and processed at once, lower values save memory",
+            defaultValue = "2048")
+    int bandRows;
+
+    @Option(names = "--tile-url",
+            description = "Base URL of the hgt tile server, e.g. a local mirror",
+            defaultValue = TileDownloader.DEFAULT_BASE_URL)
+    String tileUrl;
+
+    @Option(names = "--download-threads",
+            description = "Number of tiles downloaded concurrently",
+            defaultValue = "4")
+    int downloadThreads;
+
+    @Option(names = "--tile-storage",
+            description = "How tiles are kept on disk: HGT (plain), GZ (as downloaded), BLOCKS (compressed blocks, decoded in parallel) or CHUNKS (square chunks, only the bbox part is read)",
+            defaultValue = "HGT")
+    TileStorage tileStorage;
+
+    @Option(names = "--tile-cache",
+            description = "Tile directory shared between runs and working dirs, defaults to tiles/ in the working dir")
+    String tileCache;
+
+    @Option(names = "--tile-cache-size",
+            description = "Size limit of the tile directory in MB, least recently used tiles are deleted beyond it. 0 means no limit",
+            defaultValue = "0")
+    long tileCacheSize;
+
+    @Option(names = "--dem",
+            split = ",",
+            description = "GeoTIFF elevation files (lat/lon) to use instead of downloading hgt tiles, they must cover the whole bbox")
+    Path[] demFiles;
+
+    @Option(names = "--raster-storage",
+            description = "Where large grids live: MAPPED (scratch files in working dir, paged by the OS) or DIRECT (off-heap memory)",
+            defaultValue = "MAPPED")
+    Raster.Storage.Kind rasterStorage;
+
     public static Logger LOG;
     public static long startTime = System.nanoTime();
 
@@ -166,13 +232,15 @@ public class Main implements Runnable {
         configureErrorHandling(debug);
 
         // initialize fileManager to get all file paths and directories sorted out
-        FileManager fileManager = new FileManager(workingDir, outputFiles);
+        FileManager fileManager = new FileManager(workingDir, outputFiles, tileCache);
 
         // check if bbox is really array of 4 before initializing BoundingBox
         if (bbox.length != 4) {
             throw new IllegalArgumentException("Invalid bounding box " + Arrays.toString(bbox) + " -- you must provide a bounding box with 4 parameters.");
         }
-        LiftyBoundingBox boundingBox = new LiftyBoundingBox(bbox[0], bbox[1], bbox[2], bbox[3]);
+        LiftyBoundingBox boundingBox = region == null
+                ? new LiftyBoundingBox(bbox[0], bbox[1], bbox[2], bbox[3], resolution)
+                : new LiftyBoundingBox(Region.parse(region), resolution);
         if (boundingBox.getDimension() > 50) {
             Console console = System.console();
             String warning = "⚠️  Warning: huge bounding will result in huge data downloads, and probably memory issues. Continue? (yes/no): ";
@@ -191,6 +259,9 @@ public class Main implements Runnable {
             }
         }
         LOG.fine("Bounding Box: " + boundingBox + " with dimension + " + boundingBox.getDimension());
+        if (boundingBox.region != null) {
+            LOG.fine("Region covers " + boundingBox.region.cells() + " of " + (long) boundingBox.getMaskRows() * boundingBox.getMaskCols() + " cells");
+        }
 
         // Write out config if requested
         if (writeConfigFile) {
@@ -198,28 +269,40 @@ public class Main implements Runnable {
         }
         //Recording rec = record();
 
-        // Load elevation data
-        short[][] elev = HgtFileReader.readElevationData(fileManager.tileDir, boundingBox);
-        System.gc();
-        LOG.info("Loading data finished after " + getComputationTime());
-        // Prominence calculation: generate masks from hgt
-        boolean[][][] masks = TpiCalculator.createMasksFromElevationData(elev, promCutoffs, boundingBox, radiusSmall, radiusLarge, mountainCutoff); // Create masks from HGT data
-        elev = null;
-        System.gc();
-        LOG.info("TPI and masks calculated after " + getComputationTime());
-        // Generate .map files from masks
-        if (!osmosisMode) { // default .map workflow: iterate over masks, create and write polygons on-the-fly
-            LiftyMapFileWriter mapFileWriter = new LiftyMapFileWriter(fileManager, boundingBox, zoomString, simplification, simplificationMaxZoom);
-            mapFileWriter.writeMapFileFromMasks(masks);
-            LOG.info("Writing " + fileManager.mapOutputFile + " finished after " + getComputationTime());
-        } else { // .osm workflow: creates polygons from masks and writes to OSM format, after that converts to MAP.
-            // We have to analyze the whole mask first due to donut problem. Donut hole polys will be childs of the parent poly.
-            // Slower and more memory intensive way
-            LiftyOsmFileWriter osmWriter = new LiftyOsmFileWriter(fileManager, boundingBox);
-            osmWriter.writeOsmFileFromMasks(masks);
-            LOG.info("Writing " + fileManager.osmOutputFile + " finished after " + getComputationTime());
-            osmWriter.writeMapFileFromOsm(zoomString);
-            LOG.info("Writing " + fileManager.mapOutputFile + " finished: after " + getComputationTime());
+        // All large grids live off-heap in this storage and are released as soon as a stage is done with them
+        Raster.Storage storage = Raster.Storage.of(rasterStorage, fileManager.workingDir);
+
+        // Load elevation data band by band and generate cutoff levels on-the-fly
+        LevelRaster levels;
+        try (TileDownloader downloader = new TileDownloader(fileManager.tileDir, tileUrl, downloadThreads, tileStorage, tileCacheSize * 1_000_000);
+             GeoTiffSource dem = demFiles == null ? null : GeoTiffSource.open(Arrays.asList(demFiles))) {
+            ElevationSource source = dem != null ? dem : downloader;
+            if (tpiCache && dem != null) {
+                LOG.warning("--tpi-cache only works with hgt tiles, ignored with --dem");
+            }
+            if (tpiCache && dem == null) {
+                LevelTileCache cache = new LevelTileCache(fileManager.tileDir.resolve("levels"), tpiCacheSize * 1_000_000);
+                levels = TpiCalculator.createLevelsFromElevationTiles(source, bandRows, promCutoffs, boundingBox, radiusSmall, radiusLarge, mountainCutoff, tpiKernel, tpiPyramid, cache, storage);
+            } else {
+                levels = TpiCalculator.createLevelsFromElevationBands(source, bandRows, promCutoffs, boundingBox, radiusSmall, radiusLarge, mountainCutoff, tpiKernel, tpiPyramid, storage);
+            }
+        }
+        LOG.info("Loading data, TPI and masks calculated after " + getComputationTime());
+        // Generate .map files from masks, the levels are released even if writing fails
+        try (levels) {
+            if (!osmosisMode) { // default .map workflow: iterate over masks, create and write polygons on-the-fly
+                LiftyMapFileWriter mapFileWriter = new LiftyMapFileWriter(fileManager, boundingBox, zoomString, simplification, simplificationMaxZoom);
+                mapFileWriter.writeMapFileFromLevels(levels);
+                LOG.info("Writing " + fileManager.mapOutputFile + " finished after " + getComputationTime());
+            } else { // .osm workflow: creates polygons from masks and writes to OSM format, after that converts to MAP.
+                // We have to analyze the whole mask first due to donut problem. Donut hole polys will be childs of the parent poly.
+                // Slower and more memory intensive way
+                LiftyOsmFileWriter osmWriter = new LiftyOsmFileWriter(fileManager, boundingBox);
+                osmWriter.writeOsmFileFromLevels(levels);
+                LOG.info("Writing " + fileManager.osmOutputFile + " finished after " + getComputationTime());
+                osmWriter.writeMapFileFromOsm(zoomString);
+                LOG.info("Writing " + fileManager.mapOutputFile + " finished: after " + getComputationTime());
+            }
         }
         //rec.stop();
 
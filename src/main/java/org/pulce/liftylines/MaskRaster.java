@@ -0,0 +1,101 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.nio.LongBuffer;
+
+// One bit per cell, packed into 64 bit words per row: cell col is bit col + 1 of the row, bits 0 and cols + 1 form
+// an unset border column, plus an unset row above and below, so tracers can look at neighbors of border cells
+// without bounds checks. Rows never share a word, so different rows can be written concurrently. See Raster for the
+// memory layout, in words here.
+public class MaskRaster extends Raster {
+    public final int words; // per row
+    private final LongBuffer[] views;
+
+    public MaskRaster(int rows, int cols, Storage storage) {
+        super(rows, cols, words(cols), Long.BYTES, 1, storage);
+        words = words(cols);
+        views = new LongBuffer[segments.length];
+        for (int s = 0; s < segments.length; s++) views[s] = segments[s].asLongBuffer();
+    }
+
+    static int words(int cols) {
+        return (cols + 2 + 63) >>> 6;
+    }
+
+    public boolean get(int row, int col) {
+        int bit = col + 1;
+        return (views[segment(row)].get(offset(row, bit >>> 6)) & 1L << bit) != 0;
+    }
+
+    public boolean get(long index) {
+        return get((int) (index / cols), (int) (index % cols));
+    }
+
+    public void set(int row, int col, boolean value) {
+        int bit = col + 1;
+        LongBuffer view = views[segment(row)];
+        int at = offset(row, bit >>> 6);
+        view.put(at, value ? view.get(at) | 1L << bit : view.get(at) & ~(1L << bit));
+    }
+
+    // words words of the row as stored, cell col in bit col + 1, the border bits must stay unset
+    public void setWords(int row, long[] src) {
+        views[segment(row)].put(offset(row, 0), src, 0, words);
+    }
+
+    // First set cell of the row in [fromCol, toCol), toCol if there is none
+    public int nextSetBit(int row, int fromCol, int toCol) {
+        return next(row, fromCol, toCol, 0);
+    }
+
+    // First unset cell of the row in [fromCol, toCol), toCol if there is none
+    public int nextClearBit(int row, int fromCol, int toCol) {
+        return next(row, fromCol, toCol, -1L);
+    }
+
+    private int next(int row, int fromCol, int toCol, long invert) {
+        if (fromCol >= toCol) return toCol;
+        LongBuffer view = views[segment(row)];
+        int base = offset(row, 0);
+        int bit = fromCol + 1, lastWord = toCol >>> 6; // bit of toCol - 1 is toCol
+        int w = bit >>> 6;
+        long word = (view.get(base + w) ^ invert) & -1L << bit;
+        while (word == 0) {
+            if (++w > lastWord) return toCol;
+            word = view.get(base + w) ^ invert;
+        }
+        return Math.min((w << 6) + Long.numberOfTrailingZeros(word) - 1, toCol);
+    }
+
+    // Inverts the cells [fromCol, toCol) of the row a word at a time
+    public void flip(int row, int fromCol, int toCol) {
+        if (fromCol >= toCol) return;
+        LongBuffer view = views[segment(row)];
+        int base = offset(row, 0);
+        int from = fromCol + 1, to = toCol + 1;
+        int firstWord = from >>> 6, lastWord = (to - 1) >>> 6;
+        long firstMask = -1L << from, lastMask = -1L >>> -to;
+        if (firstWord == lastWord) {
+            view.put(base + firstWord, view.get(base + firstWord) ^ (firstMask & lastMask));
+            return;
+        }
+        view.put(base + firstWord, view.get(base + firstWord) ^ firstMask);
+        for (int w = firstWord + 1; w < lastWord; w++) {
+            view.put(base + w, ~view.get(base + w));
+        }
+        view.put(base + lastWord, view.get(base + lastWord) ^ lastMask);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.util.Arrays;
+
+/**
+ * Elevation grid kept compressed, row by row. Neighboring samples differ by a few meters, so each row is stored as
+ * deltas to the previous sample, zigzag encoded and bit-packed in blocks of {@link #BLOCK} samples with the width
+ * of the block's largest delta: 2-5 bits per sample in most terrain instead of 16, and a single byte for a flat
+ * block (lakes, sea, skipped mountains).
+ * Rows are written once and then only read, whole rows at a time, which is all the tpi kernel needs. Packed rows
+ * are immutable and can be shared between rasters, e.g. the halo rows of consecutive bands. Unlike {@link Raster}
+ * this lives on the heap: it is small, and the garbage collector frees shared rows once no raster holds them.
+ */
+public class PackedShortRaster implements ElevationRows, AutoCloseable {
+    static final int BLOCK = 32; // 32 samples of w bits are exactly 4w bytes, blocks stay byte aligned
+
+    public final int rows;
+    public final int cols;
+    private final byte[][] packed;
+
+    public PackedShortRaster(int rows, int cols) {
+        if (rows < 0 || cols < 1) {
+            throw new IllegalArgumentException("Invalid raster size " + rows + "x" + cols);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.packed = new byte[rows][];
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int cols() {
+        return cols;
+    }
+
+    // Packs cols samples of src starting at srcOffset into the row, rows may be set concurrently
+    public void setRow(int row, short[] src, int srcOffset) {
+        packed[row] = pack(src, srcOffset, cols);
+    }
+
+    // Shares count packed rows of src starting at srcRow, no copying
+    public void shareRows(PackedShortRaster src, int srcRow, int dstRow, int count) {
+        if (src.cols != cols) {
+            throw new IllegalArgumentException("Cannot share rows of " + src.cols + " cols with " + cols + " cols");
+        }
+        System.arraycopy(src.packed, srcRow, packed, dstRow, count);
+    }
+
+    @Override
+    public void getRow(int row, int fromCol, short[] dst, int dstOffset, int length) {
+        if (fromCol == 0 && length == cols) {
+            unpack(packed[row], dst, dstOffset, cols);
+        } else {
+            // deltas have to be summed from the row start anyway
+            short[] all = new short[cols];
+            unpack(packed[row], all, 0, cols);
+            System.arraycopy(all, fromCol, dst, dstOffset, length);
+        }
+    }
+
+    public long packedBytes() {
+        long bytes = 0;
+        for (byte[] row : packed) {
+            if (row != null) bytes += row.length;
+        }
+        return bytes;
+    }
+
+    static byte[] pack(short[] src, int offset, int length) {
+        // worst case 17 bit deltas: +-65535 zigzagged
+        byte[] out = new byte[(length + BLOCK - 1) / BLOCK * (1 + BLOCK * 17 / 8)];
+        int[] zigzag = new int[BLOCK];
+        int pos = 0;
+        int prev = 0;
+        for (int c = 0; c < length; c += BLOCK) {
+            int n = Math.min(BLOCK, length - c);
+            int bits = 0;
+            for (int i = 0; i < n; i++) {
+                int v = src[offset + c + i];
+                int d = v - prev;
+                prev = v;
+                zigzag[i] = (d << 1) ^ (d >> 31);
+                bits |= zigzag[i];
+            }
+            Arrays.fill(zigzag, n, BLOCK, 0); // the tail block is padded with zero deltas
+            int w = 32 - Integer.numberOfLeadingZeros(bits);
+            out[pos++] = (byte) w;
+            if (w == 0) continue;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = 0; i < BLOCK; i++) {
+                acc |= (long) zigzag[i] << accBits;
+                accBits += w;
+                while (accBits >= 8) {
+                    out[pos++] = (byte) acc;
+                    acc >>>= 8;
+                    accBits -= 8;
+                }
+            }
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    static void unpack(byte[] in, short[] dst, int offset, int length) {
+        int pos = 0;
+        int prev = 0;
+        for (int c = 0; c < length; c += BLOCK) {
+            int n = Math.min(BLOCK, length - c);
+            int w = in[pos++];
+            if (w == 0) {
+                Arrays.fill(dst, offset + c, offset + c + n, (short) prev);
+                continue;
+            }
+            int blockEnd = pos + 4 * w;
+            int mask = (1 << w) - 1;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = 0; i < n; i++) {
+                while (accBits < w) {
+                    acc |= (in[pos++] & 0xFFL) << accBits;
+                    accBits += 8;
+                }
+                int z = (int) acc & mask;
+                acc >>>= w;
+                accBits -= w;
+                prev += (z >>> 1) ^ -(z & 1);
+                dst[offset + c + i] = (short) prev;
+            }
+            pos = blockEnd;
+        }
+    }
+
+    @Override
+    public void close() {
+        Arrays.fill(packed, null); // shared rows live on in other rasters
+    }
+}
@@ -145,7 +145,8 @@ public class Polygon {
     }
 
     // We assume polygon is already instantiated, thus origin and first two lines are already set
-    public ArrayList<IntCoord> tracePolygonFromMask(boolean[][] mask) {
+    // The mask is padded with unset cells, so neighbors of border cells can be checked without bounds checks
+    public ArrayList<IntCoord> tracePolygonFromMask(MaskRaster mask) {
         ArrayList<IntCoord> donutCoords = new ArrayList<>();
         Line lastLine = lines.get(lines.size() - 1);
         IntCoord endPoint = lastLine.b;
@@ -154,10 +155,10 @@ public class Polygon {
             int x = lastLine.getMaskField().x();
             if (lastLine.direction == Line.RIGHT) {
                 // Check if has neighbor down-right
-                if (x + 1 < mask[y].length && y + 1 < mask.length && mask[y + 1][x + 1]) {
+                if (mask.get(y + 1, x + 1)) {
                     // Next line will be down
                     lastLine = new Line(endPoint, Line.DOWN);
-                } else if (x + 1 < mask[y].length && mask[y][x + 1]) {
+                } else if (mask.get(y, x + 1)) {
                     // We have a neighbor to the right
                     lastLine = new Line(endPoint, Line.RIGHT);
                 } else {
@@ -166,10 +167,10 @@ public class Polygon {
                 }
             } else if (lastLine.direction == Line.DOWN) {
                 // check if have a neighbor down-left
-                if (y + 1 < mask.length && x - 1 < mask[y].length && mask[y + 1][x - 1]) {
+                if (mask.get(y + 1, x - 1)) {
                     // Next line will be left
                     lastLine = new Line(endPoint, Line.LEFT);
-                } else if (y + 1 < mask.length && mask[y + 1][x]) {
+                } else if (mask.get(y + 1, x)) {
                     // We have a neighbor below
                     lastLine = new Line(endPoint, Line.DOWN);
                 } else {
@@ -178,10 +179,10 @@ public class Polygon {
                 }
             } else if (lastLine.direction == Line.LEFT) {
                 // check if have a neighbor up-left
-                if (x - 1 >= 0 && y - 1 >= 0 && mask[y - 1][x - 1]) {
+                if (mask.get(y - 1, x - 1)) {
                     // Next line will be up
                     lastLine = new Line(endPoint, Line.UP);
-                } else if (x - 1 >= 0 && mask[y][x - 1]) {
+                } else if (mask.get(y, x - 1)) {
                     // We have a neighbor to the left
                     lastLine = new Line(endPoint, Line.LEFT);
                 } else {
@@ -190,10 +191,10 @@ public class Polygon {
                 }
             } else if (lastLine.direction == Line.UP) {
                 // check if have a neighbor up-right
-                if (y - 1 >= 0 && x + 1 < mask[y].length && mask[y - 1][x + 1]) {
+                if (mask.get(y - 1, x + 1)) {
                     // Next line will be right
                     lastLine = new Line(endPoint, Line.RIGHT);
-                } else if (y - 1 >= 0 && mask[y - 1][x]) {
+                } else if (mask.get(y - 1, x)) {
                     // We have a neighbor above
                     lastLine = new Line(endPoint, Line.UP);
                 } else {
@@ -229,44 +230,47 @@ public class Polygon {
             if (start.y() != end.y()) {
                 throw new RuntimeException("Lines are not on the same y coordinate, emergency stop");
             }
-            // Flip all mask fields between start and end
-            for (int x = Math.min(start.x(), end.x()); x <= Math.max(start.x(), end.x()); x++) {
-                if (mask[start.y()][x]) {
-                    mask[start.y()][x] = false;
-                } else {
-                    // We have a donut problem here, i.e. a hole in the mask
-                    mask[start.y()][x] = true;
-                    donutCoords.add(new IntCoord(start.y(), x));
-                }
+            // Flip all mask fields between start and end, a word at a time
+            int from = Math.min(start.x(), end.x()), to = Math.max(start.x(), end.x()) + 1;
+            for (int x = mask.nextClearBit(start.y(), from, to); x < to; x = mask.nextClearBit(start.y(), x + 1, to)) {
+                // We have a donut problem here, i.e. a hole in the mask
+                donutCoords.add(new IntCoord(start.y(), x));
             }
+            mask.flip(start.y(), from, to);
             index += 2;
         } while (index < sortedLines.size());
         return donutCoords;
     }
 
-    public static ArrayList<Polygon> createPolygonTreeFromMask(boolean[][] mask, int liftyLineTagValue) {
+    public static ArrayList<Polygon> createPolygonTreeFromMask(MaskRaster mask, int liftyLineTagValue) {
+        return createPolygonTreeFromMask(mask, liftyLineTagValue, null);
+    }
+
+    // With a region only its rows' extent is scanned: nothing is set outside, and donut origins lie between set cells
+    public static ArrayList<Polygon> createPolygonTreeFromMask(MaskRaster mask, int liftyLineTagValue, RegionMask region) {
         // Solves the donut problem. Only needed for .osm files, not for map files.
         ArrayList<Polygon> new_polygons = new ArrayList<>();
         Map<IntCoord, Polygon> donuts = new HashMap<>();
 
-        for (int yy = 0; yy < mask.length; yy++) {
-            for (int xx = 0; xx < mask[yy].length; xx++) {
-                if (mask[yy][xx]) {
-                    //LOG.fine("Found polygon " + new_polygons.size() + " at (" + yy + ", " + xx + ")");
-                    IntCoord origin = new IntCoord(yy, xx);
-                    Polygon polygon = new Polygon(origin, liftyLineTagValue);
-                    if (donuts.containsKey(origin)) {
-                        Polygon parent = donuts.get(origin);
-                        polygon.isOuter = !parent.isOuter; // flip the isOuter flag
-                        parent.childs.add(polygon);
-                        polygon.parent = parent;
-                    } else {
-                        new_polygons.add(polygon);
-                    }
-                    ArrayList<IntCoord> donutCoords = polygon.tracePolygonFromMask(mask);
-                    for (IntCoord coord : donutCoords) {
-                        donuts.put(coord, polygon);
-                    }
+        for (int yy = 0; yy < mask.rows; yy++) {
+            int endX = region == null ? mask.cols : region.rowEnd(yy);
+            // jump from set cell to set cell, tracing clears the polygon's cells before the scan moves on
+            for (int xx = mask.nextSetBit(yy, region == null ? 0 : region.rowStart(yy), endX); xx < endX;
+                 xx = mask.nextSetBit(yy, xx + 1, endX)) {
+                //LOG.fine("Found polygon " + new_polygons.size() + " at (" + yy + ", " + xx + ")");
+                IntCoord origin = new IntCoord(yy, xx);
+                Polygon polygon = new Polygon(origin, liftyLineTagValue);
+                if (donuts.containsKey(origin)) {
+                    Polygon parent = donuts.get(origin);
+                    polygon.isOuter = !parent.isOuter; // flip the isOuter flag
+                    parent.childs.add(polygon);
+                    polygon.parent = parent;
+                } else {
+                    new_polygons.add(polygon);
+                }
+                ArrayList<IntCoord> donutCoords = polygon.tracePolygonFromMask(mask);
+                for (IntCoord coord : donutCoords) {
+                    donuts.put(coord, polygon);
                 }
             }
         }
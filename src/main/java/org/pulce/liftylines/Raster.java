@@ -0,0 +1,204 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Row-major grid living outside the Java heap, either in direct memory or in memory-mapped scratch files.
+ * One flat layout for all stages: rows are {@code stride} cells apart, optionally surrounded by {@code pad} cells
+ * of zeros on every side, so neighbor lookups at the border need no bounds checks.
+ * The grid is split into segments of 2^n whole rows (a ByteBuffer can't exceed 2 GB), cells are addressed by
+ * (row, col) or by a long index, so size is only limited by address space and disk.
+ * Memory is released deterministically on {@link #close()}, no need to wait for the garbage collector.
+ * Don't touch a raster after closing it, its memory is gone.
+ */
+public abstract class Raster implements AutoCloseable {
+    /**
+     * Where a raster's memory comes from, handed to every raster explicitly: there is no process-wide default.
+     * Rasters derived from another one (e.g. masks extracted from levels) take its storage.
+     */
+    public static final class Storage {
+        public enum Kind {
+            DIRECT, // off-heap memory, limited by -XX:MaxDirectMemorySize (defaults to heap size)
+            MAPPED  // scratch files mapped into memory, the OS pages them out if RAM runs short
+        }
+
+        public static final Storage DIRECT = new Storage(Kind.DIRECT, null);
+        // scratch files in java.io.tmpdir, for the convenience overloads that don't take a storage
+        public static final Storage TMPDIR = mapped(Paths.get(System.getProperty("java.io.tmpdir")));
+
+        public final Kind kind;
+        public final Path scratchDir; // null for DIRECT
+
+        private Storage(Kind kind, Path scratchDir) {
+            this.kind = kind;
+            this.scratchDir = scratchDir;
+        }
+
+        public static Storage mapped(Path scratchDir) {
+            return new Storage(Kind.MAPPED, scratchDir);
+        }
+
+        public static Storage of(Kind kind, Path scratchDir) {
+            return kind == Kind.DIRECT ? DIRECT : mapped(scratchDir);
+        }
+
+        @Override
+        public String toString() {
+            return kind == Kind.DIRECT ? "DIRECT" : "MAPPED in " + scratchDir;
+        }
+    }
+
+    public static Logger LOG = Logger.getLogger(Raster.class.getName());
+
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        // sun.misc.Unsafe.invokeCleaner frees direct and mapped buffers right away, looked up reflectively
+        Method cleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.fine("Cannot release buffers explicitly, falling back to gc: " + e);
+        }
+        INVOKE_CLEANER = cleaner;
+        UNSAFE = unsafe;
+    }
+
+    public final int rows;
+    public final int cols;
+    public final int stride; // stored cells between two rows, storedCols + 2 * pad
+    public final int pad;    // rows/cols [-pad, 0) and [rows/cols, rows/cols + pad) are readable and zero
+    public final Storage storage;
+    private final int segmentShift;
+    private final int segmentRowMask;
+    protected final ByteBuffer[] segments;
+    private final List<Path> scratchFiles = new ArrayList<>();
+    private boolean closed = false;
+
+    protected Raster(int rows, int cols, int bytesPerCell, int pad, Storage storage) {
+        this(rows, cols, cols, bytesPerCell, pad, storage);
+    }
+
+    // Rows of storedCols stored cells holding cols logical ones, e.g. 64 bit words of a bit-packed row.
+    // Offsets and the padding are in stored cells then.
+    protected Raster(int rows, int cols, int storedCols, int bytesPerCell, int pad, Storage storage) {
+        if (rows < 0 || cols < 1 || storedCols < 1 || pad < 0) {
+            throw new IllegalArgumentException("Invalid raster size " + rows + "x" + cols);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.pad = pad;
+        this.storage = storage;
+        this.stride = storedCols + 2 * pad;
+        int paddedRows = rows + 2 * pad;
+        long rowBytes = (long) stride * bytesPerCell;
+        // power of two rows per segment, so addressing is a shift and a mask instead of a division
+        int shift = 63 - Long.numberOfLeadingZeros(Math.max(1, MAX_SEGMENT_BYTES / rowBytes));
+        segmentShift = Math.min(shift, 31 - Integer.numberOfLeadingZeros(Math.max(1, paddedRows - 1)) + 1);
+        segmentRowMask = (1 << segmentShift) - 1;
+        int rowsPerSegment = 1 << segmentShift;
+        int segmentCount = (paddedRows + rowsPerSegment - 1) / rowsPerSegment;
+        segments = new ByteBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            int segmentRows = Math.min(rowsPerSegment, paddedRows - s * rowsPerSegment);
+            segments[s] = allocate(segmentRows * rowBytes, storage).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private ByteBuffer allocate(long bytes, Storage storage) {
+        if (storage.kind == Storage.Kind.DIRECT) {
+            return ByteBuffer.allocateDirect((int) bytes);
+        }
+        try {
+            Path file = Files.createTempFile(storage.scratchDir, "liftylines-", ".raster");
+            ByteBuffer buffer;
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            try {
+                Files.delete(file); // posix: the mapping stays valid and the file vanishes even if we crash
+            } catch (IOException e) {
+                scratchFiles.add(file); // windows won't delete mapped files, do it on close
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create raster scratch file in " + storage.scratchDir, e);
+        }
+    }
+
+    public long cells() {
+        return (long) rows * cols;
+    }
+
+    public long index(int row, int col) {
+        return (long) row * cols + col;
+    }
+
+    protected int segment(int row) {
+        return (row + pad) >>> segmentShift;
+    }
+
+    // cell offset inside the segment of the row
+    protected int offset(int row, int col) {
+        return ((row + pad) & segmentRowMask) * stride + col + pad;
+    }
+
+    // Frees a direct or mapped buffer right away instead of whenever the gc gets to it. The buffer is unusable after.
+    static void release(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            LOG.fine("Releasing buffer failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (ByteBuffer segment : segments) {
+            release(segment);
+        }
+        for (Path file : scratchFiles) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+}
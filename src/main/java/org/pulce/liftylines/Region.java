@@ -0,0 +1,366 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Area of interest as (multi)polygon in lat/lon, read from WKT or GeoJSON. Within a polygon the holes are cut out of
+ * the shell, the polygons themselves are united, so overlapping parts of a multipolygon count once. Everything outside
+ * is neither loaded, computed nor written.
+ */
+public class Region {
+    // DOTALL: GIS tools write WKT pretty-printed over many lines
+    private static final Pattern WKT_START = Pattern.compile("^(SRID=\\d+;)?\\s*[A-Z]+\\s*(Z|M|ZM)?\\s*(\\(|EMPTY).*", Pattern.DOTALL);
+    // EWKT as PostGIS writes it, WKTReader does not know the prefix
+    private static final Pattern SRID_PREFIX = Pattern.compile("^\\s*SRID=\\d+;", Pattern.CASE_INSENSITIVE);
+
+    private final List<List<double[]>> polygons; // shell and holes, each lon, lat, lon, lat, ...
+    public final double minLat, minLon, maxLat, maxLon;
+
+    private Region(List<List<double[]>> polygons) {
+        if (polygons.isEmpty()) {
+            throw new IllegalArgumentException("Region holds no polygon");
+        }
+        double south = 90, west = 180, north = -90, east = -180;
+        for (List<double[]> polygon : polygons) {
+            for (double[] ring : polygon) {
+                if (ring.length < 6) {
+                    throw new IllegalArgumentException("Region ring with less than 3 points");
+                }
+                for (int i = 0; i < ring.length; i += 2) {
+                    double lon = ring[i], lat = ring[i + 1];
+                    if (lon < -180 || lon > 180 || lat < -90 || lat > 90) {
+                        throw new IllegalArgumentException("Region coordinate " + lon + " " + lat + " is not lon/lat");
+                    }
+                    west = Math.min(west, lon);
+                    east = Math.max(east, lon);
+                    south = Math.min(south, lat);
+                    north = Math.max(north, lat);
+                }
+            }
+        }
+        this.polygons = polygons;
+        minLat = south;
+        minLon = west;
+        maxLat = north;
+        maxLon = east;
+    }
+
+    // A .geojson/.json/.wkt file, or WKT given inline
+    public static Region parse(String spec) {
+        String text = spec.trim();
+        if (!WKT_START.matcher(text.toUpperCase(Locale.ROOT)).matches()) {
+            Path file = Path.of(text);
+            try {
+                text = Files.readString(file, StandardCharsets.UTF_8).trim();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read region file " + file, e);
+            }
+        }
+        return text.startsWith("{") ? fromGeoJson(text) : fromWkt(text);
+    }
+
+    // Polygons and multipolygons, also inside geometry collections; empty and non-areal parts are skipped
+    static Region fromWkt(String wkt) {
+        Geometry geometry;
+        try {
+            geometry = new WKTReader().read(SRID_PREFIX.matcher(wkt).replaceFirst(""));
+        } catch (ParseException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid region WKT: " + e.getMessage(), e);
+        }
+        List<List<double[]>> polygons = new ArrayList<>();
+        collectPolygons(geometry, polygons);
+        return new Region(polygons);
+    }
+
+    private static void collectPolygons(Geometry geometry, List<List<double[]>> polygons) {
+        if (geometry instanceof Polygon polygon) {
+            if (polygon.isEmpty()) return;
+            List<double[]> rings = new ArrayList<>();
+            rings.add(ring(polygon.getExteriorRing()));
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                rings.add(ring(polygon.getInteriorRingN(i)));
+            }
+            polygons.add(rings);
+        } else if (geometry instanceof GeometryCollection) { // MultiPolygon is one as well
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                collectPolygons(geometry.getGeometryN(i), polygons);
+            }
+        }
+    }
+
+    private static double[] ring(LineString line) {
+        Coordinate[] points = line.getCoordinates();
+        double[] ring = new double[points.length * 2];
+        for (int i = 0; i < points.length; i++) {
+            ring[2 * i] = points[i].x;
+            ring[2 * i + 1] = points[i].y;
+        }
+        return ring;
+    }
+
+    // Polygons and multipolygons, also inside Features, FeatureCollections and GeometryCollections
+    static Region fromGeoJson(String json) {
+        List<List<double[]>> polygons = new ArrayList<>();
+        collectPolygons(new JsonParser(json).value(), polygons);
+        return new Region(polygons);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectPolygons(Object node, List<List<double[]>> polygons) {
+        if (!(node instanceof Map)) return;
+        Map<String, Object> obj = (Map<String, Object>) node;
+        Object type = obj.get("type");
+        if ("FeatureCollection".equals(type) && obj.get("features") instanceof List<?> features) {
+            for (Object feature : features) collectPolygons(feature, polygons);
+        } else if ("Feature".equals(type)) {
+            collectPolygons(obj.get("geometry"), polygons);
+        } else if ("GeometryCollection".equals(type) && obj.get("geometries") instanceof List<?> geometries) {
+            for (Object geometry : geometries) collectPolygons(geometry, polygons);
+        } else if ("Polygon".equals(type)) {
+            addPolygon(obj.get("coordinates"), polygons);
+        } else if ("MultiPolygon".equals(type) && obj.get("coordinates") instanceof List<?> multi) {
+            for (Object polygon : multi) addPolygon(polygon, polygons);
+        }
+    }
+
+    // First ring is the shell, the others are holes, as in WKT
+    private static void addPolygon(Object coordinates, List<List<double[]>> polygons) {
+        if (!(coordinates instanceof List<?> polygon)) {
+            throw new IllegalArgumentException("Invalid GeoJSON polygon coordinates");
+        }
+        if (polygon.isEmpty()) return;
+        List<double[]> rings = new ArrayList<>();
+        for (Object r : polygon) {
+            if (!(r instanceof List<?> points)) throw new IllegalArgumentException("Invalid GeoJSON ring");
+            double[] ring = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                if (!(points.get(i) instanceof List<?> p) || p.size() < 2
+                        || !(p.get(0) instanceof Double lon) || !(p.get(1) instanceof Double lat)) {
+                    throw new IllegalArgumentException("Invalid GeoJSON position");
+                }
+                ring[2 * i] = lon;
+                ring[2 * i + 1] = lat;
+            }
+            rings.add(ring);
+        }
+        polygons.add(rings);
+    }
+
+    /**
+     * Rasterizes onto the grid of the bounding box: a sample belongs to the region if its center does. Edges are
+     * bucketed by the rows they cross, so the cost is edges plus crossings instead of edges times rows. Each polygon
+     * is filled even-odd, which cuts out its holes, and the spans of all polygons are united per row.
+     */
+    public RegionMask rasterize(LiftyBoundingBox boundingBox) {
+        int rows = boundingBox.getMaskRows(), cols = boundingBox.getMaskCols();
+        double spd = boundingBox.samplesPerDegree;
+        long[][] spans = new long[rows][]; // from << 32 | to, unsorted until the end
+        int[] spanCounts = new int[rows];
+        for (List<double[]> polygon : polygons) {
+            double south = 90, north = -90;
+            for (double[] ring : polygon) {
+                for (int i = 1; i < ring.length; i += 2) {
+                    south = Math.min(south, ring[i]);
+                    north = Math.max(north, ring[i]);
+                }
+            }
+            int first = Math.max(0, (int) Math.floor((boundingBox.maxLatitude - north) * spd));
+            int last = Math.min(rows - 1, (int) Math.floor((boundingBox.maxLatitude - south) * spd) + 1);
+            if (first > last) continue;
+            double[][] crossings = new double[last - first + 1][];
+            int[] counts = new int[last - first + 1];
+            for (double[] ring : polygon) {
+                addCrossings(ring, boundingBox, first, last, crossings, counts);
+            }
+            for (int row = first; row <= last; row++) {
+                int n = counts[row - first];
+                if (n == 0) continue;
+                double[] xs = Arrays.copyOf(crossings[row - first], n);
+                Arrays.sort(xs);
+                for (int i = 0; i + 1 < xs.length; i += 2) {
+                    // columns whose sample longitude lies in [xs[i], xs[i + 1])
+                    int from = Math.max(0, (int) Math.ceil((xs[i] - boundingBox.minLongitude) * spd));
+                    int to = Math.min(cols, (int) Math.ceil((xs[i + 1] - boundingBox.minLongitude) * spd));
+                    if (from >= to) continue;
+                    if (spans[row] == null) {
+                        spans[row] = new long[4];
+                    } else if (spanCounts[row] == spans[row].length) {
+                        spans[row] = Arrays.copyOf(spans[row], spanCounts[row] * 2);
+                    }
+                    spans[row][spanCounts[row]++] = (long) from << 32 | to;
+                }
+            }
+        }
+        int[][] merged = new int[rows][];
+        for (int row = 0; row < rows; row++) {
+            if (spanCounts[row] == 0) continue;
+            long[] sorted = Arrays.copyOf(spans[row], spanCounts[row]);
+            Arrays.sort(sorted);
+            int[] out = new int[sorted.length * 2];
+            int m = 0;
+            for (long span : sorted) {
+                int from = (int) (span >>> 32), to = (int) span;
+                if (m > 0 && from <= out[m - 1]) {
+                    out[m - 1] = Math.max(out[m - 1], to); // overlapping and touching spans merge
+                } else {
+                    out[m++] = from;
+                    out[m++] = to;
+                }
+            }
+            merged[row] = Arrays.copyOf(out, m);
+        }
+        return new RegionMask(rows, cols, merged);
+    }
+
+    // Longitudes where the ring's edges cross the sample latitude of rows first..last
+    private static void addCrossings(double[] ring, LiftyBoundingBox boundingBox, int first, int last,
+                                     double[][] crossings, int[] counts) {
+        double spd = boundingBox.samplesPerDegree;
+        int n = ring.length / 2;
+        for (int i = 0; i < n; i++) {
+            int k = (i + 1) % n; // open and closed rings both work, a zero length closing edge crosses nothing
+            double x1 = ring[2 * i], y1 = ring[2 * i + 1], x2 = ring[2 * k], y2 = ring[2 * k + 1];
+            if (y1 == y2) continue;
+            double lo = Math.min(y1, y2), hi = Math.max(y1, y2);
+            // rows whose sample latitude lies in [lo, hi), widened by one and checked exactly below
+            int from = Math.max(first, (int) Math.floor((boundingBox.maxLatitude - hi) * spd));
+            int to = Math.min(last, (int) Math.floor((boundingBox.maxLatitude - lo) * spd) + 1);
+            for (int row = from; row <= to; row++) {
+                double lat = boundingBox.maxLatitude - row / spd;
+                if (lat < lo || lat >= hi) continue;
+                double x = x1 + (lat - y1) * (x2 - x1) / (y2 - y1);
+                int b = row - first;
+                if (crossings[b] == null) {
+                    crossings[b] = new double[4];
+                } else if (counts[b] == crossings[b].length) {
+                    crossings[b] = Arrays.copyOf(crossings[b], counts[b] * 2);
+                }
+                crossings[b][counts[b]++] = x;
+            }
+        }
+    }
+
+    // Just enough JSON for GeoJSON: objects, arrays, strings, numbers, literals
+    private static class JsonParser {
+        private final String s;
+        private int pos = 0;
+
+        JsonParser(String s) {
+            this.s = s;
+        }
+
+        Object value() {
+            skipWhitespace();
+            if (pos >= s.length()) throw error("Unexpected end");
+            char c = s.charAt(pos);
+            if (c == '{') {
+                Map<String, Object> obj = new HashMap<>();
+                pos++;
+                skipWhitespace();
+                if (peek('}')) return obj;
+                do {
+                    skipWhitespace();
+                    String key = string();
+                    skipWhitespace();
+                    expect(':');
+                    obj.put(key, value());
+                    skipWhitespace();
+                } while (peek(','));
+                expect('}');
+                return obj;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                pos++;
+                skipWhitespace();
+                if (peek(']')) return list;
+                do {
+                    list.add(value());
+                    skipWhitespace();
+                } while (peek(','));
+                expect(']');
+                return list;
+            }
+            if (c == '"') return string();
+            if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+            if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+            if (s.startsWith("null", pos)) { pos += 4; return null; }
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+            try {
+                return Double.parseDouble(s.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("Unexpected character");
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length() && s.charAt(pos) != '"') {
+                char c = s.charAt(pos++);
+                if (c == '\\' && pos < s.length()) {
+                    char e = s.charAt(pos++);
+                    if (e == 'u' && pos + 4 <= s.length()) {
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                    } else {
+                        sb.append(switch (e) { case 'n' -> '\n'; case 't' -> '\t'; case 'r' -> '\r'; case 'b' -> '\b'; case 'f' -> '\f'; default -> e; });
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            expect('"');
+            return sb.toString();
+        }
+
+        private boolean peek(char c) {
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!peek(c)) throw error("Expected '" + c + "'");
+        }
+
+        private void skipWhitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String what) {
+            return new IllegalArgumentException("Invalid region GeoJSON: " + what + " at position " + pos);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+/**
+ * A {@link Region} rasterized onto the processing grid of a bounding box: for every grid row the sorted, disjoint
+ * column spans [from, to) whose samples lie inside. Cheap to query row by row, which is how every stage walks the grid.
+ */
+public class RegionMask {
+    private static final int[] NO_SPANS = new int[0];
+
+    public final int rows;
+    public final int cols;
+    private final int[][] spans; // per row: from0, to0, from1, to1, ...
+
+    RegionMask(int rows, int cols, int[][] spans) {
+        this.rows = rows;
+        this.cols = cols;
+        this.spans = spans;
+    }
+
+    // Spans of the row as from/to pairs, don't modify. Rows outside the grid have none.
+    public int[] spans(int row) {
+        if (row < 0 || row >= rows || spans[row] == null) return NO_SPANS;
+        return spans[row];
+    }
+
+    public boolean contains(int row, int col) {
+        int[] s = spans(row);
+        for (int i = 0; i < s.length; i += 2) {
+            if (col < s[i]) return false;
+            if (col < s[i + 1]) return true;
+        }
+        return false;
+    }
+
+    // First and end column of the row's spans, start >= end if the row is empty
+    public int rowStart(int row) {
+        int[] s = spans(row);
+        return s.length == 0 ? cols : s[0];
+    }
+
+    public int rowEnd(int row) {
+        int[] s = spans(row);
+        return s.length == 0 ? 0 : s[s.length - 1];
+    }
+
+    // Does any of the rows [fromRow, toRow) hold a cell of the region?
+    public boolean hasCells(int fromRow, int toRow) {
+        for (int row = Math.max(0, fromRow); row < Math.min(rows, toRow); row++) {
+            if (spans(row).length > 0) return true;
+        }
+        return false;
+    }
+
+    public long cells() {
+        long n = 0;
+        for (int row = 0; row < rows; row++) {
+            int[] s = spans(row);
+            for (int i = 0; i < s.length; i += 2) n += s[i + 1] - s[i];
+        }
+        return n;
+    }
+}
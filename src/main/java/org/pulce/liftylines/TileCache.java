@@ -0,0 +1,301 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Tile directory that can be shared by concurrent liftyLines runs and is kept below a size cap.
+ * Every tile has an empty lock file next to it: runs hold a shared lock on its first byte while they use the tile
+ * (so nobody evicts it under their feet) and an exclusive lock on its second byte while they download or convert it
+ * (so nobody else does the same work or writes the same file, and nobody evicts it meanwhile). The small index file remembers when each tile was
+ * last used, least recently used tiles are evicted once the cache grows beyond maxBytes.
+ * File locks belong to the whole process, so threads of one run are coordinated in memory on top, and lock files
+ * stay open for the lifetime of the process: posix drops all locks of a process on a file once any descriptor
+ * of it is closed.
+ */
+public class TileCache {
+    public static Logger LOG = Logger.getLogger(TileCache.class.getName());
+
+    private static final String INDEX_FILE = "tiles.index";
+    private static final String CACHE_LOCK_FILE = "tiles.lock";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final long LOCK_POLL_MS = 20;
+    private static final Pattern TILE_NAME = Pattern.compile("[NS]\\d{2}[EW]\\d{3}");
+
+    private static final Map<Path, FileChannel> CHANNELS = new ConcurrentHashMap<>();
+    private static final Map<Path, ReentrantLock> FILL_LOCKS = new ConcurrentHashMap<>();
+    private static final Map<Path, Pin> PINS = new HashMap<>();
+    private static final Object INDEX_MONITOR = new Object();
+
+    public final Path dir;
+    private final long maxBytes; // 0 = unbounded
+
+    @FunctionalInterface
+    public interface IOCallable<T> {
+        T call() throws IOException;
+    }
+
+    private static class Pin {
+        final FileLock lock;
+        int count = 0;
+
+        Pin(FileLock lock) {
+            this.lock = lock;
+        }
+
+        Pin(FileLock lock, int count) {
+            this.lock = lock;
+            this.count = count;
+        }
+    }
+
+    public TileCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    // Marks the tile as in use until the returned handle is closed, and as recently used in the index
+    public Closeable pin(String tileName) throws IOException {
+        Path lockFile = dir.resolve(tileName + LOCK_SUFFIX);
+        synchronized (PINS) {
+            Pin pin = PINS.get(lockFile);
+            if (pin == null) {
+                pin = new Pin(lock(lockChannel(lockFile), 0, 1, true));
+                PINS.put(lockFile, pin);
+            }
+            pin.count++;
+        }
+        touch(tileName);
+        return () -> unpin(lockFile);
+    }
+
+    private static void unpin(Path lockFile) throws IOException {
+        synchronized (PINS) {
+            Pin pin = PINS.get(lockFile);
+            if (pin == null || --pin.count > 0) return;
+            PINS.remove(lockFile);
+            pin.lock.release();
+        }
+    }
+
+    // Runs action while no other thread or process fills the same tile. Check for the tile again inside, someone
+    // else may have finished it while we were waiting.
+    public <T> T fill(String tileName, IOCallable<T> action) throws IOException {
+        Path lockFile = dir.resolve(tileName + LOCK_SUFFIX);
+        ReentrantLock local = FILL_LOCKS.computeIfAbsent(lockFile, p -> new ReentrantLock());
+        local.lock();
+        try (FileLock ignored = lock(lockChannel(lockFile), 1, 1, false)) {
+            return action.call();
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * Deletes a file of the tile unless another run has the tile pinned, e.g. a plain tile superseded by a converted
+     * one, which a run configured for plain tiles may still be reading. Kept otherwise, eviction removes it later.
+     * Only call it inside {@link #fill} of the tile: the own pin is lifted while checking for others, the fill lock
+     * keeps eviction off the tile until it is back. Pinned more than once in this process, the tile may be in use by
+     * another downloader here, the file is kept then too.
+     */
+    public boolean deleteIfUnpinned(String tileName, Path file) throws IOException {
+        Path lockFile = dir.resolve(tileName + LOCK_SUFFIX);
+        FileChannel channel = lockChannel(lockFile);
+        synchronized (PINS) {
+            Pin pin = PINS.get(lockFile);
+            if (pin != null && pin.count > 1) return false;
+            if (pin != null) pin.lock.release();
+            try {
+                FileLock exclusive;
+                try {
+                    exclusive = channel.tryLock(0, 1, false);
+                } catch (OverlappingFileLockException e) {
+                    return false;
+                }
+                if (exclusive == null) return false;
+                try {
+                    Files.deleteIfExists(file);
+                } finally {
+                    exclusive.release();
+                }
+                return true;
+            } finally {
+                if (pin != null) PINS.put(lockFile, new Pin(lock(channel, 0, 1, true), pin.count));
+            }
+        }
+    }
+
+    private void touch(String tileName) throws IOException {
+        synchronized (INDEX_MONITOR) {
+            try (FileLock ignored = lock(lockChannel(dir.resolve(CACHE_LOCK_FILE)), 0, Long.MAX_VALUE, false)) {
+                Map<String, Long> lastUsed = readIndex();
+                lastUsed.put(tileName, System.currentTimeMillis());
+                writeIndex(lastUsed);
+            }
+        }
+    }
+
+    // Deletes least recently used tiles that nobody uses until the cache fits into maxBytes again
+    public void evict() throws IOException {
+        if (maxBytes <= 0) return;
+        synchronized (INDEX_MONITOR) {
+            try (FileLock ignored = lock(lockChannel(dir.resolve(CACHE_LOCK_FILE)), 0, Long.MAX_VALUE, false)) {
+                Map<String, List<Path>> files = new HashMap<>();
+                Map<String, Long> sizes = new HashMap<>();
+                long total = 0;
+                try (Stream<Path> list = Files.list(dir)) {
+                    for (Path file : (Iterable<Path>) list::iterator) {
+                        String name = file.getFileName().toString();
+                        int dot = name.indexOf('.');
+                        if (dot < 0 || !TILE_NAME.matcher(name.substring(0, dot)).matches()
+                                || name.endsWith(LOCK_SUFFIX) || name.endsWith(".tmp")) {
+                            continue; // lock files stay, they are empty and deleting them would race with lockers
+                        }
+                        String tile = name.substring(0, dot);
+                        long size;
+                        try {
+                            size = Files.size(file);
+                        } catch (NoSuchFileException e) {
+                            continue; // published or cleaned up by another run in the meantime
+                        }
+                        files.computeIfAbsent(tile, t -> new ArrayList<>()).add(file);
+                        sizes.merge(tile, size, Long::sum);
+                        total += size;
+                    }
+                }
+                if (total <= maxBytes) return;
+
+                Map<String, Long> lastUsed = readIndex();
+                List<String> tiles = new ArrayList<>(files.keySet());
+                tiles.sort(Comparator.comparingLong(t -> lastUsed.getOrDefault(t, 0L)));
+                for (String tile : tiles) {
+                    if (total <= maxBytes) break;
+                    if (tryDelete(tile, files.get(tile))) {
+                        total -= sizes.get(tile);
+                        lastUsed.remove(tile);
+                        LOG.fine("Evicted " + tile + " from tile cache");
+                    }
+                }
+                writeIndex(lastUsed);
+                if (total > maxBytes) {
+                    LOG.warning("Tile cache holds " + total / 1_000_000 + " MB, more than its limit, but all tiles are in use");
+                }
+            }
+        }
+    }
+
+    // Only tiles nobody has pinned or is filling are deleted, the exclusive locks keep new pins and fills out while
+    // we do
+    private boolean tryDelete(String tile, List<Path> tileFiles) throws IOException {
+        Path lockFile = dir.resolve(tile + LOCK_SUFFIX);
+        synchronized (PINS) {
+            if (PINS.containsKey(lockFile)) return false;
+            FileChannel channel = lockChannel(lockFile);
+            FileLock lock = null, fillLock = null;
+            try {
+                lock = channel.tryLock(0, 1, false);
+                if (lock == null) return false;
+                fillLock = channel.tryLock(1, 1, false);
+                if (fillLock == null) return false;
+                for (Path file : tileFiles) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (OverlappingFileLockException e) {
+                return false;
+            } finally {
+                if (fillLock != null) fillLock.release();
+                if (lock != null) lock.release();
+            }
+        }
+        return true;
+    }
+
+    private Map<String, Long> readIndex() throws IOException {
+        Map<String, Long> lastUsed = new HashMap<>();
+        Path index = dir.resolve(INDEX_FILE);
+        if (!Files.exists(index)) return lastUsed;
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 2) continue;
+            try {
+                lastUsed.put(parts[0], Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                LOG.fine("Ignoring broken tile index line: " + line);
+            }
+        }
+        return lastUsed;
+    }
+
+    private void writeIndex(Map<String, Long> lastUsed) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        lastUsed.entrySet().stream().sorted(Map.Entry.comparingByKey())
+                .forEach(e -> sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n'));
+        Path tmp = Files.createTempFile(dir, INDEX_FILE, ".tmp");
+        try {
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, dir.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, dir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Polls instead of blocking: the kernel's deadlock detection sees processes, not threads, and reports false
+    // deadlocks when two runs wait for each other's locks on different threads
+    private static FileLock lock(FileChannel channel, long position, long size, boolean shared) throws IOException {
+        while (true) {
+            FileLock lock = channel.tryLock(position, size, shared);
+            if (lock != null) return lock;
+            try {
+                Thread.sleep(LOCK_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for tile cache lock");
+            }
+        }
+    }
+
+    private static FileChannel lockChannel(Path lockFile) throws IOException {
+        try {
+            return CHANNELS.computeIfAbsent(lockFile, p -> {
+                try {
+                    return FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Fetches hgt tiles into the tiles directory. Plain .hgt tiles already there are ingested into the configured
+ * {@link TileStorage} on first use. Downloads run concurrently on a bounded pool, are retried, and resume
+ * from the partial .gz of an earlier failed attempt. Tiles are converted to the configured {@link TileStorage} in a temp
+ * file and only published under their final name once complete, so a crash never leaves a truncated tile behind.
+ * The directory is a {@link TileCache}: tiles fetched by this downloader stay pinned until it is closed.
+ * As an {@link ElevationSource} it hands out the tiles covering a bounding box, fetching them in the background.
+ */
+public class TileDownloader implements ElevationSource, AutoCloseable {
+    public static Logger LOG = Logger.getLogger(TileDownloader.class.getName());
+
+    public static final String DEFAULT_BASE_URL = "https://s3.amazonaws.com/elevation-tiles-prod/skadi/";
+    private static final int MAX_ATTEMPTS = 4;
+    private static final int TIMEOUT_MS = 30_000;
+
+    public final Path tilesDir;
+    public final TileStorage storage;
+    private final String baseUrl;
+    private final ExecutorService exec;
+    private final TileCache cache;
+    private final List<Closeable> pins = new ArrayList<>();
+
+    public TileDownloader(Path tilesDir, String baseUrl, int maxConcurrentDownloads) {
+        this(tilesDir, baseUrl, maxConcurrentDownloads, TileStorage.HGT);
+    }
+
+    public TileDownloader(Path tilesDir, String baseUrl, int maxConcurrentDownloads, TileStorage storage) {
+        this(tilesDir, baseUrl, maxConcurrentDownloads, storage, 0);
+    }
+
+    public TileDownloader(Path tilesDir, String baseUrl, int maxConcurrentDownloads, TileStorage storage, long maxCacheBytes) {
+        if (maxConcurrentDownloads < 1) {
+            throw new IllegalArgumentException("Number of concurrent downloads must be at least 1");
+        }
+        this.tilesDir = tilesDir;
+        this.storage = storage;
+        this.cache = new TileCache(tilesDir, maxCacheBytes);
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.exec = Executors.newFixedThreadPool(maxConcurrentDownloads, r -> {
+            Thread t = new Thread(r, "tile-download");
+            t.setDaemon(true); // never keep the jvm alive for a pending download
+            return t;
+        });
+    }
+
+    @Override
+    public List<? extends Patch> patches(LiftyBoundingBox boundingBox) {
+        return HgtFileReader.createTiles(this, boundingBox);
+    }
+
+    // Completes with the path of the local tile once it is available, downloading it if necessary
+    public CompletableFuture<Path> fetch(int lat, int lon) {
+        String tileName = tileName(lat, lon);
+        try {
+            Closeable pin = cache.pin(tileName);
+            synchronized (pins) {
+                pins.add(pin);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot lock tile " + tileName + " in " + tilesDir, e);
+        }
+        Path localFile = localTile(lat, lon);
+        if (isComplete(localFile)) {
+            LOG.fine("Using available hgt file " + localFile);
+            return CompletableFuture.completedFuture(localFile);
+        }
+        return CompletableFuture.supplyAsync(() -> fill(lat, lon), exec);
+    }
+
+    // Downloads or converts the tile, unless another run got it done while we were waiting for the lock
+    private Path fill(int lat, int lon) {
+        String tileName = tileName(lat, lon);
+        Path localFile;
+        try {
+            localFile = cache.fill(tileName, () -> {
+                Path target = localTile(lat, lon);
+                if (isComplete(target)) {
+                    return target;
+                }
+                Path plain = tilesDir.resolve(tileFileName(lat, lon));
+                return isComplete(plain) ? ingest(tileName, plain, target) : download(lat, lon, target);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot lock tile " + tileName + " in " + tilesDir, e);
+        }
+        try {
+            cache.evict();
+        } catch (IOException e) {
+            LOG.warning("Tile cache eviction failed: " + e.getMessage());
+        }
+        return localFile;
+    }
+
+    // Where the tile lives locally once fetched: an existing copy in any storage format, else the configured format.
+    // Plain tiles don't count unless HGT is configured, they are converted.
+    public Path localTile(int lat, int lon) {
+        String fileName = tileFileName(lat, lon);
+        Path preferred = tilesDir.resolve(fileName.replace(".hgt", storage.suffix));
+        if (isComplete(preferred)) return preferred;
+        for (TileStorage other : TileStorage.values()) {
+            if (other == TileStorage.HGT) continue;
+            Path candidate = tilesDir.resolve(fileName.replace(".hgt", other.suffix));
+            if (isComplete(candidate)) return candidate;
+        }
+        return preferred;
+    }
+
+    public static String tileFileName(int lat, int lon) {
+        // build normalized name
+        char latHem = lat >= 0 ? 'N' : 'S';
+        char lonHem = lon >= 0 ? 'E' : 'W';
+        return String.format("%c%02d%c%03d.hgt", latHem, Math.abs(lat), lonHem, Math.abs(lon));
+    }
+
+    static String tileName(int lat, int lon) {
+        String fileName = tileFileName(lat, lon);
+        return fileName.substring(0, fileName.indexOf('.'));
+    }
+
+    public static long expectedTileBytes() {
+        long s = HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1;
+        return s * s * Short.BYTES;
+    }
+
+    // Compressed tiles are only ever published after validation, so existence is enough for them
+    private static boolean isComplete(Path localFile) {
+        try {
+            return Files.exists(localFile) && (TileStorage.fromPath(localFile) != TileStorage.HGT
+                    || Files.size(localFile) == expectedTileBytes());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Path download(int lat, int lon, Path localFile) {
+        String fileName = tileFileName(lat, lon);
+        String url = baseUrl + fileName.substring(0, 3) + "/" + fileName + ".gz";
+        Path gzPart = tilesDir.resolve(fileName + ".gz.part");
+        for (int attempt = 1; ; attempt++) {
+            try {
+                LOG.info("Downloading " + url);
+                fetchResumable(url, gzPart);
+                try (InputStream gis = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(gzPart)))) {
+                    publish(gis, gzPart, localFile);
+                }
+                Files.deleteIfExists(gzPart);
+                return localFile;
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException("Tile not available: " + url, e); // no point in retrying a 404
+            } catch (ZipException | EOFException e) {
+                // the partial download is garbage, start from scratch next time
+                deleteQuietly(gzPart);
+                if (attempt >= MAX_ATTEMPTS) throw new UncheckedIOException("Failed to decompress " + url, e);
+                LOG.warning("Corrupt download of " + url + ", retrying (" + attempt + "/" + MAX_ATTEMPTS + ")");
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) throw new UncheckedIOException("Failed to download/decompress " + url, e);
+                LOG.warning("Download of " + url + " failed: " + e.getMessage() + ", retrying (" + attempt + "/" + MAX_ATTEMPTS + ")");
+            }
+            try {
+                Thread.sleep(1000L << attempt); // back off a bit before the next attempt
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while downloading " + url, e);
+            }
+        }
+    }
+
+    // Appends to the partial file if the server supports ranges, otherwise (re)starts the download
+    private static void fetchResumable(String url, Path gzPart) throws IOException {
+        long have = Files.exists(gzPart) ? Files.size(gzPart) : 0;
+        URLConnection con = URI.create(url).toURL().openConnection();
+        con.setConnectTimeout(TIMEOUT_MS);
+        con.setReadTimeout(TIMEOUT_MS);
+        boolean append = false;
+        if (con instanceof HttpURLConnection http) {
+            if (have > 0) {
+                http.setRequestProperty("Range", "bytes=" + have + "-");
+            }
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(url);
+            }
+            if (code == 416 && have > 0) {
+                return; // range not satisfiable: we already have everything
+            }
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+            append = have > 0 && code == HttpURLConnection.HTTP_PARTIAL;
+            if (have > 0) LOG.fine(append ? "Resuming " + url + " at byte " + have : "Server ignored range, restarting " + url);
+        }
+        try (InputStream in = con.getInputStream();
+             OutputStream out = Files.newOutputStream(gzPart, StandardOpenOption.CREATE,
+                     append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            in.transferTo(out);
+        }
+    }
+
+    // Converts a plain tile left by an earlier run (or copied in by hand) to the configured storage
+    private Path ingest(String tileName, Path plain, Path localFile) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(plain), 1 << 16)) {
+            LOG.info("Converting " + plain.getFileName() + " to " + localFile.getFileName());
+            publish(in, null, localFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to convert " + plain, e);
+        }
+        // superseded, readers prefer the configured format from now on. A run configured for plain tiles may still be
+        // reading it though, it stays then until eviction.
+        try {
+            if (!cache.deleteIfUnpinned(tileName, plain)) {
+                LOG.fine("Keeping " + plain.getFileName() + ", another run is using it");
+            }
+        } catch (IOException e) {
+            LOG.fine("Could not delete " + plain + ": " + e.getMessage());
+        }
+        return localFile;
+    }
+
+    // Converts the raw tile stream to the storage format in a temp file next to the target, checks the size, writes
+    // the tile summary and atomically renames it. gzSource is the gzip the stream comes from, if any.
+    private void publish(InputStream raw, Path gzSource, Path localFile) throws IOException {
+        Path tmp = Files.createTempFile(tilesDir, localFile.getFileName().toString(), ".tmp");
+        try {
+            long size;
+            // the min/max summary is collected on the way through, no second pass over the tile needed
+            TileSummary.Builder summary = new TileSummary.Builder(HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1);
+            try (InputStream in = summary.tap(raw)) {
+                size = switch (storage) {
+                    case HGT -> {
+                        try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING)) {
+                            yield in.transferTo(out);
+                        }
+                    }
+                    case GZ -> {
+                        if (gzSource != null) {
+                            Files.copy(gzSource, tmp, StandardCopyOption.REPLACE_EXISTING);
+                            yield in.transferTo(OutputStream.nullOutputStream()); // just validate
+                        }
+                        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING), 1 << 16)) {
+                            yield in.transferTo(out);
+                        }
+                    }
+                    case BLOCKS -> BlockTileCodec.encode(in, HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1, tmp);
+                    case CHUNKS -> ChunkedTileCodec.encode(in, HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1, tmp);
+                };
+            }
+            if (size != expectedTileBytes()) {
+                throw new ZipException("Unexpected tile size " + size + " for " + localFile.getFileName());
+            }
+            summary.build().save(TileSummary.pathFor(localFile));
+            try {
+                Files.move(tmp, localFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, localFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.fine("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        exec.shutdownNow();
+        synchronized (pins) {
+            for (Closeable pin : pins) {
+                try {
+                    pin.close();
+                } catch (IOException e) {
+                    LOG.fine("Unpinning tile failed: " + e.getMessage());
+                }
+            }
+            pins.clear();
+        }
+        // tiles we held on to may be evicted now
+        try {
+            cache.evict();
+        } catch (IOException e) {
+            LOG.warning("Tile cache eviction failed: " + e.getMessage());
+        }
+    }
+}
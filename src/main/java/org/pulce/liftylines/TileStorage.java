@@ -0,0 +1,47 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.nio.file.Path;
+
+/**
+ * How tiles are kept in the tiles directory.
+ * HGT: plain decompressed .hgt (~25 MB per tile), fastest to read.
+ * GZ: the .gz as downloaded, smallest, but not seekable: inflated north to south in one pass per run.
+ * BLOCKS: row blocks compressed independently (see {@link BlockTileCodec}), small and decodable in parallel.
+ * CHUNKS: uncompressed square chunks (see {@link ChunkedTileCodec}), only the chunks inside the bbox are read.
+ */
+public enum TileStorage {
+    HGT(".hgt", true),
+    GZ(".hgt.gz", false),
+    BLOCKS(".hgtz", true),
+    CHUNKS(".hgtc", true);
+
+    public final String suffix;
+    public final boolean splittable; // can row slices of a tile be decoded independently?
+
+    TileStorage(String suffix, boolean splittable) {
+        this.suffix = suffix;
+        this.splittable = splittable;
+    }
+
+    public static TileStorage fromPath(Path path) {
+        String name = path.getFileName().toString();
+        for (TileStorage storage : values()) {
+            if (name.endsWith(storage.suffix)) return storage;
+        }
+        throw new IllegalArgumentException("Unknown tile format: " + path);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Min/max elevation of a tile and of each of its BLOCK x BLOCK sample blocks, kept next to the tile as .minmax.
+ * Built on the fly while a tile is published, tiles downloaded before get theirs on first use.
+ * Layout: int magic, int samplesPerSide, int block, short min, short max, then min/max per block row by row.
+ * All big-endian.
+ */
+public class TileSummary {
+    public static Logger LOG = Logger.getLogger(TileSummary.class.getName());
+
+    public static final int BLOCK = 64; // same as BlockTileCodec rows per block, skipped blocks are never inflated
+    public static final String SUFFIX = ".minmax";
+    private static final int MAGIC = 0x4C4D4D31; // "LMM1"
+
+    public final int samplesPerSide;
+    public final int blocksPerSide;
+    public final short min;
+    public final short max;
+    private final short[] blockMin;
+    private final short[] blockMax;
+
+    private TileSummary(int samplesPerSide, short min, short max, short[] blockMin, short[] blockMax) {
+        this.samplesPerSide = samplesPerSide;
+        this.blocksPerSide = (samplesPerSide + BLOCK - 1) / BLOCK;
+        this.min = min;
+        this.max = max;
+        this.blockMin = blockMin;
+        this.blockMax = blockMax;
+    }
+
+    public short blockMin(int blockRow, int blockCol) {
+        return blockMin[blockRow * blocksPerSide + blockCol];
+    }
+
+    public short blockMax(int blockRow, int blockCol) {
+        return blockMax[blockRow * blocksPerSide + blockCol];
+    }
+
+    // N47E012.hgt(.gz|z) -> N47E012.minmax, one summary for all storage formats
+    public static Path pathFor(Path tile) {
+        String name = tile.getFileName().toString();
+        return tile.resolveSibling(name.substring(0, name.indexOf(".hgt")) + SUFFIX);
+    }
+
+    // Loads the summary of a tile, building and saving it first if it is missing or unreadable
+    public static TileSummary of(Path tile) {
+        Path file = pathFor(tile);
+        if (Files.exists(file)) {
+            try {
+                return load(file);
+            } catch (IOException e) {
+                LOG.warning("Rebuilding broken tile summary " + file + ": " + e.getMessage());
+            }
+        }
+        try {
+            TileSummary summary = build(tile);
+            summary.save(file);
+            return summary;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot summarize " + tile, e);
+        }
+    }
+
+    private static TileSummary build(Path tile) throws IOException {
+        int samplesPerSide = HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1;
+        Builder builder = new Builder(samplesPerSide);
+        switch (TileStorage.fromPath(tile)) {
+            case HGT -> {
+                try (InputStream in = builder.tap(new BufferedInputStream(Files.newInputStream(tile), 1 << 16))) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            case GZ -> {
+                try (InputStream in = builder.tap(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(tile), 1 << 16)))) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            case BLOCKS -> {
+                try (BlockTileCodec.Reader reader = new BlockTileCodec.Reader(tile)) {
+                    reader.readRows(0, reader.samplesPerSide, builder::accept);
+                }
+            }
+            case CHUNKS -> {
+                try (ChunkedTileCodec.Reader reader = new ChunkedTileCodec.Reader(tile)) {
+                    reader.readRows(0, reader.samplesPerSide, builder::accept);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static TileSummary load(Path file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.BIG_ENDIAN);
+        if (buf.remaining() < 3 * Integer.BYTES + 2 * Short.BYTES || buf.getInt() != MAGIC) {
+            throw new IOException("Not a tile summary");
+        }
+        int samplesPerSide = buf.getInt();
+        int block = buf.getInt();
+        int blocks = (samplesPerSide + block - 1) / block;
+        if (block != BLOCK || buf.remaining() != (2 + 2 * blocks * blocks) * Short.BYTES) {
+            throw new IOException("Unexpected tile summary layout");
+        }
+        short min = buf.getShort(), max = buf.getShort();
+        short[] blockMin = new short[blocks * blocks], blockMax = new short[blocks * blocks];
+        ShortBuffer shorts = buf.asShortBuffer();
+        shorts.get(blockMin).get(blockMax);
+        return new TileSummary(samplesPerSide, min, max, blockMin, blockMax);
+    }
+
+    // Written to a temp file and renamed, so concurrent runs never read half a summary
+    void save(Path file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(3 * Integer.BYTES + (2 + 2 * blockMin.length) * Short.BYTES)
+                .order(ByteOrder.BIG_ENDIAN);
+        buf.putInt(MAGIC).putInt(samplesPerSide).putInt(BLOCK).putShort(min).putShort(max);
+        for (short v : blockMin) buf.putShort(v);
+        for (short v : blockMax) buf.putShort(v);
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, buf.array());
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Collects min/max row by row, either from decoded rows or by tapping a raw big-endian tile stream
+    public static class Builder {
+        private final int samplesPerSide;
+        private final int blocks;
+        private final short[] blockMin;
+        private final short[] blockMax;
+        private int rowsSeen = 0;
+
+        public Builder(int samplesPerSide) {
+            this.samplesPerSide = samplesPerSide;
+            this.blocks = (samplesPerSide + BLOCK - 1) / BLOCK;
+            blockMin = new short[blocks * blocks];
+            blockMax = new short[blocks * blocks];
+            Arrays.fill(blockMin, Short.MAX_VALUE);
+            Arrays.fill(blockMax, Short.MIN_VALUE);
+        }
+
+        public void accept(int tileRow, short[] samples) {
+            int base = (tileRow / BLOCK) * blocks;
+            for (int b = 0; b < blocks; b++) {
+                short lo = blockMin[base + b], hi = blockMax[base + b];
+                for (int c = b * BLOCK; c < Math.min(samplesPerSide, (b + 1) * BLOCK); c++) {
+                    short v = samples[c];
+                    if (v < lo) lo = v;
+                    if (v > hi) hi = v;
+                }
+                blockMin[base + b] = lo;
+                blockMax[base + b] = hi;
+            }
+            rowsSeen++;
+        }
+
+        // Passes the stream through unchanged and summarizes every complete row on the way
+        public InputStream tap(InputStream raw) {
+            return new FilterInputStream(raw) {
+                private final byte[] rowBytes = new byte[samplesPerSide * Short.BYTES];
+                private final ShortBuffer rowShorts = ByteBuffer.wrap(rowBytes).order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+                private final short[] samples = new short[samplesPerSide];
+                private int filled = 0;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) consume(new byte[]{(byte) b}, 0, 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) consume(b, off, n);
+                    return n;
+                }
+
+                private void consume(byte[] b, int off, int len) {
+                    while (len > 0) {
+                        int n = Math.min(len, rowBytes.length - filled);
+                        System.arraycopy(b, off, rowBytes, filled, n);
+                        filled += n;
+                        off += n;
+                        len -= n;
+                        if (filled == rowBytes.length) {
+                            if (rowsSeen < samplesPerSide) {
+                                rowShorts.get(0, samples);
+                                accept(rowsSeen, samples);
+                            }
+                            filled = 0;
+                        }
+                    }
+                }
+            };
+        }
+
+        public TileSummary build() throws IOException {
+            if (rowsSeen != samplesPerSide) {
+                throw new EOFException("Tile summary saw " + rowsSeen + " of " + samplesPerSide + " rows");
+            }
+            short min = Short.MAX_VALUE, max = Short.MIN_VALUE;
+            for (int i = 0; i < blockMin.length; i++) {
+                min = (short) Math.min(min, blockMin[i]);
+                max = (short) Math.max(max, blockMax[i]);
+            }
+            return new TileSummary(samplesPerSide, min, max, blockMin, blockMax);
+        }
+    }
+}
@@ -14,209 +14,950 @@
  */
 package org.pulce.liftylines;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 public class TpiCalculator {
+    public static Logger LOG = Logger.getLogger(TpiCalculator.class.getName());
 
-    private static int ry, rx, diamY, count;
-    private static int[] dxArr;
+    /**
+     * How the mean elevation over an ellipse is computed. EXACT sums the ellipse row by row, O(radius) per cell.
+     * BOX approximates the ellipse by a staircase of {@link #BOX_STEPS} centered rectangles, each a vertical and a
+     * horizontal box filter over running sums, O(1) per cell whatever the radius. The mean is a true mean over the
+     * staircase, the error is its shape only. How far that moves the tpi is measured on sampled rows and logged.
+     */
+    public enum Kernel {EXACT, BOX}
 
-    public static boolean[][][] createMasksFromElevationData(short[][] elev, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff) {
-        float[][] tpiSmall = parallelCalcTPI(elev, radiusSmall, boundingBox.minLatitude, mountainCutoff);
-        float[][] tpiLarge = parallelCalcTPI(elev, radiusLarge, boundingBox.minLatitude, mountainCutoff);
-        int rows = tpiSmall.length, cols = tpiSmall[0].length;
-        // combined tpi: sqr (tpiSmall^2 + tpiLarge^2)
-        float[][] promClean = new float[rows][cols];
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                float s = tpiSmall[i][j], l = tpiLarge[i][j];
-                promClean[i][j] = (float) Math.sqrt(s * s + l * l);
+    static final int BOX_STEPS = 4;
+    // every this many grid rows one row is recomputed exactly to measure the box kernel's error
+    static final int ERROR_SAMPLE_STRIDE = 64;
+    static final int MIN_BLOCK_ROWS = 16;
+    // ellipses up to this many cells can't overflow the vector kernel's int sums, even at +-32768 m
+    static final int MAX_VECTOR_CELLS = Integer.MAX_VALUE / 32768;
+    static final boolean VECTOR_KERNEL = vectorKernelAvailable();
+    static final int BLOCKS_PER_WORKER = 8;
+    // with the pyramid, radii are evaluated up to this many times coarser while keeping at least the min radius
+    static final int MAX_PYRAMID_FACTOR = 4;
+    static final double PYRAMID_MIN_RADIUS = 16;
+    // exact kernel ellipses with at least this radius (in samples) are summed by fft convolution instead of prefix
+    // sums. Terms take it as a parameter, so both can be compared on the same data.
+    static final int FFT_MIN_RADIUS = 256;
+
+    // Shared by all calculations in the jvm. Workers are daemon threads, nothing to shut down.
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    public static LevelRaster createLevelsFromElevationData(ElevationRows elev, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff) {
+        return createLevelsFromElevationData(elev, cutoffs, boundingBox, radiusSmall, radiusLarge, mountainCutoff, Kernel.EXACT, false, Raster.Storage.TMPDIR);
+    }
+
+    // With pyramid, radii of PYRAMID_MIN_RADIUS or more coarse samples are evaluated on a 2x/4x coarser grid. The
+    // levels get the given storage.
+    public static LevelRaster createLevelsFromElevationData(ElevationRows elev, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff, Kernel kernel, boolean pyramid, Raster.Storage storage) {
+        LevelRaster levels = new LevelRaster(elev.rows(), elev.cols(), cutoffs, storage);
+        KernelError error = kernel == Kernel.EXACT && !pyramid ? null : new KernelError();
+        fillLevels(elev, 0, elev.rows(), 0, levels, boundingBox,
+                radiusInSamples(radiusSmall, boundingBox), radiusInSamples(radiusLarge, boundingBox), mountainCutoff,
+                kernel, pyramid, error);
+        if (error != null) error.log(kernel, pyramid);
+        return levels;
+    }
+
+    public static LevelRaster createLevelsFromElevationBands(ElevationSource source, int bandRows, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff) {
+        return createLevelsFromElevationBands(source, bandRows, cutoffs, boundingBox, radiusSmall, radiusLarge, mountainCutoff, Kernel.EXACT, false, Raster.Storage.TMPDIR);
+    }
+
+    // Band-wise variant: only one band of elevation data (plus halo) is alive at any time, levels are stitched together
+    public static LevelRaster createLevelsFromElevationBands(ElevationSource source, int bandRows, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff, Kernel kernel, boolean pyramid, Raster.Storage storage) {
+        float rSmall = radiusInSamples(radiusSmall, boundingBox), rLarge = radiusInSamples(radiusLarge, boundingBox);
+        LevelRaster levels = new LevelRaster(boundingBox.getMaskRows(), boundingBox.getMaskCols(), cutoffs, storage);
+        KernelError error = kernel == Kernel.EXACT && !pyramid ? null : new KernelError();
+        // halo must cover the larger kernel, so core rows of a band get exactly the tpi of the full grid. Coarse
+        // blocks and their interpolation neighbors reach up to 3 blocks further.
+        int maxFactor = pyramid ? Math.max(pyramidFactor(rSmall), pyramidFactor(rLarge)) : 1;
+        int haloRows = (int) Math.round(Math.max(rSmall, rLarge)) + (maxFactor > 1 ? 3 * maxFactor : 0);
+        HgtFileReader.streamElevationBands(source, boundingBox, bandRows, haloRows, mountainCutoff, storage, band ->
+                fillLevels(band.data, band.coreStart - band.firstRow, band.coreEnd - band.firstRow, band.firstRow,
+                        levels, boundingBox, rSmall, rLarge, mountainCutoff, kernel, pyramid, error));
+        if (error != null) error.log(kernel, pyramid);
+        return levels;
+    }
+
+    /**
+     * Tile-wise variant with a persistent cache: levels are computed per 1° tile, from the tile plus a halo covering
+     * the kernel, and cached. Tiles cached by earlier runs (same resolution, radii, kernel, cutoffs, mountain cutoff)
+     * are just read. Each tile is computed in bands of bandRows, with the kernel shape of its own latitude, and whole:
+     * unlike the other variants, cells near the bbox border get the tpi of the terrain around them, not 0.
+     */
+    public static LevelRaster createLevelsFromElevationTiles(ElevationSource source, int bandRows, double[] cutoffs, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff, Kernel kernel, boolean pyramid, LevelTileCache cache, Raster.Storage storage) {
+        float rSmall = radiusInSamples(radiusSmall, boundingBox), rLarge = radiusInSamples(radiusLarge, boundingBox);
+        int spd = boundingBox.samplesPerDegree;
+        int rows = boundingBox.getMaskRows(), cols = boundingBox.getMaskCols();
+        LevelRaster levels = new LevelRaster(rows, cols, cutoffs, storage);
+        RegionMask region = boundingBox.region;
+        // the halo must let the largest ellipse (and coarse pyramid blocks) fit around every sample of the tile
+        int maxFactor = pyramid ? Math.max(pyramidFactor(rSmall), pyramidFactor(rLarge)) : 1;
+        int haloRows = (int) Math.ceil(Math.max(rSmall, rLarge)) + (maxFactor > 1 ? 3 * maxFactor : 0) + 1;
+        // global sample indices, lat * spd and lon * spd
+        int top = (int) Math.round(boundingBox.maxLatitude * spd), left = (int) Math.round(boundingBox.minLongitude * spd);
+        int bottom = top - rows + 1, right = left + cols - 1;
+        String settings = String.format(Locale.ROOT, "res %d radii %s %s kernel %s pyramid %b cutoffs %s mountain %s",
+                boundingBox.arcsecPerSample, radiusSmall, radiusLarge, kernel, pyramid,
+                Arrays.toString(levels.sortedCutoffs()), mountainCutoff);
+        try {
+            for (int lat = Math.floorDiv(top, spd); lat >= Math.floorDiv(bottom, spd); lat--) {
+                // the tile's own samples: [lat, lat + 1) x [lon, lon + 1), the pole and antimeridian rows included
+                int tileTop = Math.min(lat * spd + spd - 1, 90 * spd), tileBottom = lat * spd;
+                int fromRow = Math.max(0, top - tileTop), toRow = Math.min(rows, top - tileBottom + 1);
+                if (region != null && !region.hasCells(fromRow, toRow)) continue;
+                double cosMax = Math.cos(Math.toRadians(Math.min(89.0, Math.max(Math.abs(lat - 1), Math.abs(lat + 2)))));
+                int haloCols = (int) Math.ceil(Math.max(rSmall, rLarge) / cosMax) + (maxFactor > 1 ? 3 * maxFactor : 0) + 1;
+                for (int lon = Math.floorDiv(left, spd); lon <= Math.floorDiv(right, spd); lon++) {
+                    int tileLeft = lon * spd, tileRight = Math.min(lon * spd + spd - 1, 180 * spd);
+                    int fromCol = Math.max(0, tileLeft - left), toCol = Math.min(cols, tileRight - left + 1);
+                    LiftyBoundingBox haloBox = new LiftyBoundingBox(
+                            Math.max(-90 * spd, tileBottom - haloRows) / (double) spd,
+                            Math.max(-180 * spd, tileLeft - haloCols) / (double) spd,
+                            Math.min(90 * spd, tileTop + haloRows) / (double) spd,
+                            Math.min(180 * spd, tileRight + haloCols) / (double) spd,
+                            boundingBox.arcsecPerSample);
+                    String key = settings + " shape " + kernelShape(new double[]{rSmall, rLarge}, haloBox.minLatitude, kernel);
+                    byte[][] tile = cache.levels(lat, lon, key, tileTop - tileBottom + 1, tileRight - tileLeft + 1, () -> {
+                        int haloTop = (int) Math.round(haloBox.maxLatitude * spd), haloLeft = (int) Math.round(haloBox.minLongitude * spd);
+                        byte[][] own = new byte[tileTop - tileBottom + 1][tileRight - tileLeft + 1];
+                        try (LevelRaster haloLevels = createLevelsFromElevationBands(source, bandRows, cutoffs, haloBox,
+                                radiusSmall, radiusLarge, mountainCutoff, kernel, pyramid, storage)) {
+                            for (int r = 0; r < own.length; r++) {
+                                haloLevels.getRow(haloTop - tileTop + r, tileLeft - haloLeft, own[r], 0, own[r].length);
+                            }
+                        }
+                        return own;
+                    });
+                    // tile row of bbox row i is i + tileTop - top, tile col of bbox col j is j + left - tileLeft
+                    int[] allCols = {0, cols};
+                    for (int i = fromRow; i < toRow; i++) {
+                        int[] spans = region == null ? allCols : region.spans(i);
+                        for (int k = 0; k < spans.length; k += 2) {
+                            int from = Math.max(fromCol, spans[k]), to = Math.min(toCol, spans[k + 1]);
+                            if (from < to) {
+                                levels.setRow(i, from, tile[i + tileTop - top], from + left - tileLeft, to - from);
+                            }
+                        }
+                    }
+                }
             }
+        } catch (RuntimeException e) {
+            levels.close();
+            throw e;
+        }
+        return levels;
+    }
+
+    // Fingerprint of the ellipses the kernel uses at that latitude
+    private static String kernelShape(double[] radii, double minLat, Kernel kernel) {
+        Terms terms = new Terms(radii, null, minLat, kernel);
+        int hash = 1;
+        for (Ellipse e : terms.ellipses) {
+            hash = 31 * hash + Arrays.hashCode(e.dx);
+        }
+        return String.format("%08x", hash);
+    }
+
+    // The exact kernel sums many cells at once with the Vector API if the jdk.incubator.vector module was added
+    // (the start scripts do), falls back to the scalar loop otherwise
+    private static boolean vectorKernelAvailable() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            LOG.fine("Vector API not available, scalar tpi kernel");
+            return false;
+        }
+        try {
+            boolean available = VectorEllipseSums.available();
+            LOG.fine(available ? "Vector API tpi kernel" : "Vectors too narrow, scalar tpi kernel");
+            return available;
+        } catch (LinkageError e) {
+            LOG.fine("Vector API not usable, scalar tpi kernel: " + e);
+            return false;
         }
-        tpiSmall = null;
-        tpiLarge = null;
-        System.gc();
-        // one mask for each cutoff
-        boolean[][][] masks = new boolean[cutoffs.length][rows][cols];
+    }
+
+    // Radii are given in arcsec lat, the kernel works in samples of the processing grid
+    private static float radiusInSamples(float radiusArcsec, LiftyBoundingBox boundingBox) {
+        float radius = radiusArcsec / boundingBox.arcsecPerSample;
+        if (Math.round(radius) < 1) {
+            throw new IllegalArgumentException("Radius of " + radiusArcsec + " arcsec is less than one sample at "
+                    + boundingBox.arcsecPerSample + " arcsec resolution");
+        }
+        return radius;
+    }
+
+    // Writes levels for elev rows [fromRow, toRow) into level rows starting at (levelRowOffset + fromRow), radii in
+    // samples. Fused: both tpi terms, their combination and the cutoffs are evaluated row by row in the kernel, only
+    // the levels are written. Halo rows are read but not computed.
+    // An approximate kernel (or the pyramid) also stashes sampled rows and compares them with the exact kernel into
+    // error.
+    private static void fillLevels(ElevationRows elev, int fromRow, int toRow, int levelRowOffset, LevelRaster levels, LiftyBoundingBox boundingBox, float radiusSmall, float radiusLarge, float mountainCutoff, Kernel kernel, boolean pyramid, KernelError error) {
+        int cols = elev.cols();
+        double[] cutoffs = levels.sortedCutoffs();
+        float[] thresholds = new float[cutoffs.length]; // ascending like the cutoffs
         for (int k = 0; k < cutoffs.length; k++) {
-            double cutoff = cutoffs[k];
-            for (int i = 0; i < rows; i++) {
-                for (int j = 0; j < cols; j++) {
-                    masks[k][i][j] = promClean[i][j] > cutoff;
+            thresholds[k] = squaredThreshold(cutoffs[k]);
+        }
+        double[] radii = {radiusSmall, radiusLarge};
+        RegionMask region = boundingBox.region;
+        Pyramid coarse = pyramid ? new Pyramid(elev, levelRowOffset, levels.rows, radii, boundingBox.minLatitude, kernel, levels.storage) : null;
+        Terms terms = new Terms(coarse == null ? radii : coarse.fullGridRadii, null, boundingBox.minLatitude, kernel);
+        Map<Integer, float[][]> samples = error == null ? null : new ConcurrentHashMap<>();
+        sweep(elev, fromRow, toRow, terms, mountainCutoff, region, levelRowOffset, levels.storage, (i, fullGridTpi) -> {
+            float[][] tpi = fullGridTpi;
+            if (coarse != null) {
+                // coarse terms are finished here, full grid terms are taken as they are
+                tpi = new float[radii.length][];
+                short[] rowData = new short[cols];
+                elev.getRow(i, 0, rowData, 0, cols);
+                int[] spans = region == null ? new int[]{0, cols} : region.spans(levelRowOffset + i);
+                for (int t = 0, k = 0; t < radii.length; t++) {
+                    tpi[t] = coarse.factors[t] == 1 ? fullGridTpi[k++]
+                            : coarse.tpiRow(t, levelRowOffset + i, rowData, spans, mountainCutoff);
                 }
             }
+            float[] small = tpi[0], large = tpi[1];
+            for (int j = 0; j < cols; j++) {
+                levels.set(levelRowOffset + i, j, level(small[j], large[j], thresholds));
+            }
+            if (samples != null && (levelRowOffset + i) % ERROR_SAMPLE_STRIDE == 0) {
+                samples.put(i, new float[][]{small.clone(), large.clone()});
+            }
+        });
+        if (samples == null) return;
+        // single rows: prefix sums only, an fft window would compute hundreds of rows for one
+        Terms exact = new Terms(radii, null, boundingBox.minLatitude, Kernel.EXACT, false, Integer.MAX_VALUE);
+        LongRaster[] noFft = new LongRaster[exact.ellipses.length];
+        short[] rowData = new short[cols];
+        for (int row : new TreeSet<>(samples.keySet())) {
+            calcChunk(elev, row, row + 1, exact, noFft, row, mountainCutoff, region, levelRowOffset, (i, tpi) -> {
+                elev.getRow(i, 0, rowData, 0, cols);
+                error.add(samples.get(i), tpi, rowData, mountainCutoff, thresholds, region, levelRowOffset + i);
+            });
         }
-        promClean = null;
-        System.gc();
-        return masks;
     }
 
-    private static void initEllipseMask(double radiusLat, double radiusLon) {
-        ry = (int) Math.round(radiusLat);
-        rx = (int) Math.round(radiusLon);
-        diamY = 2 * ry + 1;
+    // combined tpi sqr (tpiSmall^2 + tpiLarge^2) > cutoff, compared squared: the number of thresholds reached
+    private static int level(float small, float large, float[] thresholds) {
+        float combinedSquared = small * small + large * large;
+        int level = 0;
+        while (level < thresholds.length && combinedSquared >= thresholds[level]) level++;
+        return level;
+    }
+
+    // Deviation of an approximate kernel (or the pyramid) from the exact one over the sampled cells: inside the region, below the
+    // mountain cutoff. Sampled sequentially, no locking.
+    private static class KernelError {
+        long cells, levelsDiffering;
+        double squaredSum, max;
 
-        // Build boolean mask and derive per-row horizontal extents
-        boolean[][] mask = new boolean[diamY][2 * rx + 1];
-        for (int dy = -ry; dy <= ry; dy++) {
-            for (int dx0 = -rx; dx0 <= rx; dx0++) {
-                double nx = dx0 / radiusLon;
-                double ny = dy / radiusLat;
-                if (nx * nx + ny * ny <= 1.0) {
-                    mask[dy + ry][dx0 + rx] = true;
+        void add(float[][] approx, float[][] exact, short[] rowData, float mountainCutoff, float[] thresholds,
+                 RegionMask region, int regionRow) {
+            for (int j = 0; j < rowData.length; j++) {
+                if (rowData[j] > mountainCutoff || region != null && !region.contains(regionRow, j)) continue;
+                // error of the combined tpi, the value the cutoffs apply to
+                double a = Math.hypot(approx[0][j], approx[1][j]), e = Math.hypot(exact[0][j], exact[1][j]);
+                squaredSum += (a - e) * (a - e);
+                max = Math.max(max, Math.abs(a - e));
+                if (level(approx[0][j], approx[1][j], thresholds) != level(exact[0][j], exact[1][j], thresholds)) {
+                    levelsDiffering++;
                 }
+                cells++;
             }
         }
 
-        dxArr = new int[diamY];
-        count = 0;
-        for (int i = 0; i < diamY; i++) {
-            int leftIdx = 2 * rx, rightIdx = -1;
-            for (int j = 0; j < mask[i].length; j++) {
-                if (mask[i][j]) {
-                    count++;
-                    leftIdx = Math.min(leftIdx, j);
-                    rightIdx = Math.max(rightIdx, j);
+        void log(Kernel kernel, boolean pyramid) {
+            if (cells == 0) return;
+            LOG.info(String.format(Locale.ROOT, "%s tpi kernel%s vs exact on %d sampled cells: rms %.2f m, max %.2f m, level differs in %.2f%%",
+                    kernel, pyramid ? " with pyramid" : "", cells, Math.sqrt(squaredSum / cells), max, 100.0 * levelsDiffering / cells));
+        }
+    }
+
+    // Smallest q with (float) sqrt(q) > cutoff: comparing squared values against it decides exactly like taking
+    // the square root first, sqrt rounding included
+    static float squaredThreshold(double cutoff) {
+        if (cutoff < 0) {
+            return 0;
+        }
+        float q = (float) (cutoff * cutoff);
+        while (q > 0 && (float) Math.sqrt(q) > cutoff) {
+            q = Math.nextDown(q);
+        }
+        while ((float) Math.sqrt(q) <= cutoff) {
+            q = Math.nextUp(q);
+        }
+        return q;
+    }
+
+    // Rows of an ellipse around the center cell: row dy covers cols [-dx[dy + ry], dx[dy + ry]]
+    private static class Ellipse {
+        final int ry, rx, diamY, count;
+        final int[] dx;
+
+        Ellipse(double radiusLat, double radiusLon) {
+            ry = (int) Math.floor(radiusLat); // rows further out than radiusLat would be empty
+            rx = (int) Math.round(radiusLon);
+            diamY = 2 * ry + 1;
+
+            // Build boolean mask and derive per-row horizontal extents
+            boolean[][] mask = new boolean[diamY][2 * rx + 1];
+            for (int dy = -ry; dy <= ry; dy++) {
+                for (int dx0 = -rx; dx0 <= rx; dx0++) {
+                    double nx = dx0 / radiusLon;
+                    double ny = dy / radiusLat;
+                    if (nx * nx + ny * ny <= 1.0) {
+                        mask[dy + ry][dx0 + rx] = true;
+                    }
+                }
+            }
+
+            dx = new int[diamY];
+            int n = 0;
+            for (int i = 0; i < diamY; i++) {
+                int leftIdx = 2 * rx, rightIdx = -1;
+                for (int j = 0; j < mask[i].length; j++) {
+                    if (mask[i][j]) {
+                        n++;
+                        leftIdx = Math.min(leftIdx, j);
+                        rightIdx = Math.max(rightIdx, j);
+                    }
                 }
+                dx[i] = rightIdx - rx;
             }
-            dxArr[i] = rightIdx - rx;
+            count = n;
         }
     }
 
+    /**
+     * An ellipse approximated by nested centered rectangles: step k covers rows [-h[k], h[k]] and cols [-w[k], w[k]],
+     * h ascending, w descending. Their union is a staircase whose rows with h[k - 1] < |dy| <= h[k] have half width
+     * w[k]. Steps are fitted to the ellipse's row widths by dynamic programming, minimizing the cells they miss or add.
+     */
+    private static class Staircase {
+        final int[] h, w;
+        final int count;
 
-    static class ChunkResult {
-        final int startRow;
-        final float[][] chunk;
+        Staircase(Ellipse el, int steps) {
+            int n = el.ry + 1; // rows dy = 0..ry, widths non-increasing in dy
+            int[] width = new int[n];
+            long[] prefix = new long[n + 1];
+            for (int d = 0; d < n; d++) {
+                width[d] = el.dx[el.ry + d];
+                prefix[d + 1] = prefix[d] + width[d];
+            }
+            int k = Math.min(steps, n);
+            // cost[g][b]: least error of rows 0..b in g + 1 steps, from[g][b] first row of the last step
+            long[][] cost = new long[k][n];
+            int[][] from = new int[k][n];
+            for (int b = 0; b < n; b++) cost[0][b] = error(width, prefix, 0, b);
+            for (int g = 1; g < k; g++) {
+                for (int b = g; b < n; b++) {
+                    cost[g][b] = Long.MAX_VALUE;
+                    for (int a = g; a <= b; a++) {
+                        long c = cost[g - 1][a - 1] + error(width, prefix, a, b);
+                        if (c < cost[g][b]) {
+                            cost[g][b] = c;
+                            from[g][b] = a;
+                        }
+                    }
+                }
+            }
+            h = new int[k];
+            w = new int[k];
+            for (int g = k - 1, b = n - 1; g >= 0; g--) {
+                int a = g == 0 ? 0 : from[g][b];
+                h[g] = b;
+                w[g] = width[(a + b) / 2];
+                b = a - 1;
+            }
+            int cells = 0;
+            for (int g = 0; g < k; g++) {
+                cells += (2 * w[g] + 1) * (2 * h[g] + 1 - (g == 0 ? 0 : 2 * h[g - 1] + 1));
+            }
+            count = cells;
+        }
 
-        ChunkResult(int s, float[][] c) {
-            startRow = s;
-            chunk = c;
+        // Cells off when rows [a, b] get the median width, the widths being sorted descending
+        private static long error(int[] width, long[] prefix, int a, int b) {
+            int m = (a + b) / 2;
+            long median = width[m];
+            return (prefix[m + 1] - prefix[a]) - (m - a + 1) * median + (b - m) * median - (prefix[b + 1] - prefix[m + 1]);
         }
     }
 
-    private static ChunkResult calcChunk(short[][] data, int startRow, int endRow) {
+    // The ellipses of a set of tpi terms. Term t is elevation minus the mean over ellipse outer[t], or over the ring
+    // between outer[t] and inner[t] (inner[t] >= 0). Equal ellipses are summed only once. With the box kernel
+    // every ellipse has a staircase, which is summed instead. With means the kernel hands out the plain means
+    // instead of the tpi, NaN where the ellipse doesn't fit. Very large ellipses of the exact kernel are summed by
+    // fft, the ring buffer only has to cover the others.
+    private static class Terms {
+        final Ellipse[] ellipses;
+        final Staircase[] staircases; // null for the exact kernel
+        final FftEllipseSums[] fft; // per ellipse, null where the ring buffer sums it
+        final int[] outer, inner;
+        final int ryMax;
+        final int ringRy;
+        final boolean means;
+
+        Terms(double[] radii, double[] innerRadii, double minLat, Kernel kernel) {
+            this(radii, innerRadii, minLat, kernel, false);
+        }
+
+        Terms(double[] radii, double[] innerRadii, double minLat, Kernel kernel, boolean means) {
+            this(radii, innerRadii, minLat, kernel, means, FFT_MIN_RADIUS);
+        }
 
-        int rows = data.length;
-        int cols = data[0].length;
-        float[][] meanChunk = new float[endRow - startRow][cols];
-        for (float[] row : meanChunk) Arrays.fill(row, Float.NaN);
+        // fftMinRadius: exact ellipses from this radius on are summed by fft, Integer.MAX_VALUE for none
+        Terms(double[] radii, double[] innerRadii, double minLat, Kernel kernel, boolean means, int fftMinRadius) {
+            this.means = means;
+            double cosLat = Math.cos(Math.toRadians(minLat));
+            List<Double> distinct = new ArrayList<>();
+            outer = new int[radii.length];
+            inner = new int[radii.length];
+            for (int t = 0; t < radii.length; t++) {
+                double innerRadius = innerRadii == null ? 0 : innerRadii[t];
+                if (innerRadius >= radii[t]) {
+                    throw new IllegalArgumentException("Inner radius " + innerRadius + " must be less than the radius " + radii[t]);
+                }
+                outer[t] = indexOf(distinct, radii[t]);
+                inner[t] = innerRadius > 0 ? indexOf(distinct, innerRadius) : -1;
+            }
+            ellipses = new Ellipse[distinct.size()];
+            staircases = kernel == Kernel.BOX ? new Staircase[ellipses.length] : null;
+            fft = new FftEllipseSums[ellipses.length];
+            int max = 0, ring = 0;
+            for (int e = 0; e < ellipses.length; e++) {
+                ellipses[e] = new Ellipse(distinct.get(e), distinct.get(e) / cosLat);
+                if (staircases != null) {
+                    staircases[e] = new Staircase(ellipses[e], BOX_STEPS);
+                } else if (ellipses[e].ry >= fftMinRadius) {
+                    fft[e] = new FftEllipseSums(ellipses[e].dx);
+                }
+                max = Math.max(max, ellipses[e].ry);
+                if (fft[e] == null) ring = Math.max(ring, ellipses[e].ry);
+            }
+            ryMax = max;
+            ringRy = ring;
+        }
 
-        // Circular buffer for prefix sums
-        int[][] buffer = new int[diamY][cols];
+        // cells the sum of ellipse e covers
+        int count(int e) {
+            return staircases == null ? ellipses[e].count : staircases[e].count;
+        }
+
+        private static int indexOf(List<Double> values, double value) {
+            int index = values.indexOf(value);
+            if (index < 0) {
+                values.add(value);
+                index = values.size() - 1;
+            }
+            return index;
+        }
+    }
+
+    // Coarsening factor of a radius in samples for the pyramid: a power of two up to MAX_PYRAMID_FACTOR, leaving at
+    // least PYRAMID_MIN_RADIUS coarse samples
+    static int pyramidFactor(double radius) {
+        int f = 1;
+        while (f < MAX_PYRAMID_FACTOR && radius / (2 * f) >= PYRAMID_MIN_RADIUS) f *= 2;
+        return f;
+    }
+
+    /**
+     * Large radii on coarser grids. The elevation is block averaged 2x, that again 2x for 4x, and all radii of a
+     * level are swept together there. Their means are then upsampled bilinearly to the full grid, a coarse sample
+     * standing for the center of its block. Blocks are aligned to global rows and only complete ones are built
+     * (partial ones at the grid's edges too), so every band sees the blocks of the full grid as long as its halo
+     * covers the radius plus 3 blocks. Cells closer to the border than the full grid ellipse get 0 as with the
+     * exact kernel. Near the border some interpolation neighbors may lack a mean, the others are weighted up then.
+     */
+    private static class Pyramid {
+        final int[] factors; // per term, 1 = left to the full grid
+        final double[] fullGridRadii;
+        private final float[][][] means; // per term [coarse row][coarse col], null on the full grid
+        private final int[] firstCoarseRow; // per term, global coarse row of means[t][0]
+        private final Ellipse[] fullGridEllipses; // per term, for the border
+        private final int totalRows;
+
+        Pyramid(ElevationRows elev, int firstRow, int totalRows, double[] radii, double minLat, Kernel kernel, Raster.Storage storage) {
+            factors = new int[radii.length];
+            means = new float[radii.length][][];
+            firstCoarseRow = new int[radii.length];
+            fullGridEllipses = new Ellipse[radii.length];
+            this.totalRows = totalRows;
+            double cosLat = Math.cos(Math.toRadians(minLat));
+            int maxFactor = 1, fullGrid = 0;
+            for (int t = 0; t < radii.length; t++) {
+                factors[t] = pyramidFactor(radii[t]);
+                if (factors[t] > 1) fullGridEllipses[t] = new Ellipse(radii[t], radii[t] / cosLat);
+                maxFactor = Math.max(maxFactor, factors[t]);
+                if (factors[t] == 1) fullGrid++;
+            }
+            fullGridRadii = new double[fullGrid];
+            for (int t = 0, k = 0; t < radii.length; t++) {
+                if (factors[t] == 1) fullGridRadii[k++] = radii[t];
+            }
+
+            ShortRaster level = null;
+            ElevationRows src = elev;
+            int srcFirst = firstRow, srcTotal = totalRows;
+            try {
+                for (int f = 2; f <= maxFactor; f *= 2) {
+                    int levelFactor = f;
+                    int[] terms = IntStream.range(0, radii.length).filter(t -> factors[t] == levelFactor).toArray();
+                    int first = Math.floorDiv(srcFirst + 1, 2);
+                    ShortRaster coarser = downsample(src, srcFirst, srcTotal, first);
+                    if (level != null) level.close();
+                    level = coarser;
+                    src = level;
+                    srcFirst = first;
+                    srcTotal = (srcTotal + 1) / 2;
+                    if (terms.length == 0) continue;
+                    double[] coarseRadii = new double[terms.length];
+                    for (int k = 0; k < terms.length; k++) coarseRadii[k] = radii[terms[k]] / f;
+                    float[][][] levelMeans = new float[terms.length][level.rows][];
+                    sweep(level, 0, level.rows, new Terms(coarseRadii, null, minLat, kernel, true), null, null, 0, storage,
+                            (i, rows) -> {
+                                for (int k = 0; k < rows.length; k++) levelMeans[k][i] = rows[k].clone();
+                            });
+                    for (int k = 0; k < terms.length; k++) {
+                        means[terms[k]] = levelMeans[k];
+                        firstCoarseRow[terms[k]] = first;
+                    }
+                }
+            } finally {
+                if (level != null) level.close();
+            }
+        }
+
+        // 2x2 block averages of src rows (global rows srcFirst...), starting at global coarse row first. Blocks cut
+        // off by the end of the grid are averaged over what there is.
+        private static ShortRaster downsample(ElevationRows src, int srcFirst, int srcTotal, int first) {
+            int srcEnd = srcFirst + src.rows();
+            int end = srcEnd == srcTotal ? (srcTotal + 1) / 2 : srcEnd / 2;
+            int srcCols = src.cols(), cols = (srcCols + 1) / 2;
+            ShortRaster coarse = new ShortRaster(Math.max(0, end - first), cols, Raster.Storage.DIRECT);
+            short[] row = new short[srcCols], out = new short[cols];
+            int[] sum = new int[cols];
+            for (int r = first; r < end; r++) {
+                Arrays.fill(sum, 0);
+                int rowsIn = Math.min(2 * r + 2, srcEnd) - 2 * r;
+                for (int y = 2 * r; y < 2 * r + rowsIn; y++) {
+                    src.getRow(y - srcFirst, 0, row, 0, srcCols);
+                    for (int x = 0; x < srcCols; x++) sum[x >> 1] += row[x];
+                }
+                for (int c = 0; c < cols; c++) {
+                    int colsIn = Math.min(2, srcCols - 2 * c);
+                    out[c] = (short) Math.round(sum[c] / (double) (rowsIn * colsIn));
+                }
+                coarse.setRow(r - first, 0, out, 0, cols);
+            }
+            return coarse;
+        }
+
+        // Tpi of coarse term t for the cells of global row y, from its upsampled means
+        float[] tpiRow(int t, int y, short[] rowData, int[] spans, Float mountainCutoff) {
+            float[] tpi = new float[rowData.length];
+            Ellipse el = fullGridEllipses[t];
+            if (y - el.ry < 0 || y + el.ry >= totalRows) return tpi;
+            float[][] m = means[t];
+            int f = factors[t];
+            // block centers sit at (f - 1) / 2 in the block, never on a full grid cell for even f
+            double v = (y - (f - 1) / 2.0) / f - firstCoarseRow[t];
+            int r0 = (int) Math.floor(v);
+            float wy = (float) (v - r0);
+            float[] upper = r0 >= 0 && r0 < m.length ? m[r0] : null;
+            float[] lower = r0 + 1 >= 0 && r0 + 1 < m.length ? m[r0 + 1] : null;
+            float[] weighted = new float[2]; // sum, weight
+            for (int k = 0; k < spans.length; k += 2) {
+                for (int j = Math.max(el.rx, spans[k]); j < Math.min(rowData.length - el.rx, spans[k + 1]); j++) {
+                    if (mountainCutoff != null && rowData[j] > mountainCutoff) {
+                        continue;
+                    }
+                    double u = (j - (f - 1) / 2.0) / f;
+                    int c0 = (int) Math.floor(u);
+                    float wx = (float) (u - c0);
+                    weighted[0] = weighted[1] = 0;
+                    addNeighbor(upper, c0, (1 - wx) * (1 - wy), weighted);
+                    addNeighbor(upper, c0 + 1, wx * (1 - wy), weighted);
+                    addNeighbor(lower, c0, (1 - wx) * wy, weighted);
+                    addNeighbor(lower, c0 + 1, wx * wy, weighted);
+                    if (weighted[1] == 0) continue;
+                    float val = rowData[j] - weighted[0] / weighted[1];
+                    tpi[j] = val > 0 ? val : 0;
+                }
+            }
+            return tpi;
+        }
+
+        private static void addNeighbor(float[] row, int c, float weight, float[] weighted) {
+            if (row == null || c < 0 || c >= row.length || Float.isNaN(row[c])) return;
+            weighted[0] += row[c] * weight;
+            weighted[1] += weight;
+        }
+    }
+
+    // Receives the finished tpi rows of all terms for data row i, called concurrently for different rows.
+    // The arrays are reused for the next row.
+    private interface RowSink {
+        void accept(int row, float[][] tpiRows);
+    }
+
+    // Computes the final tpi of every term for rows [startRow, endRow) and hands them to the sink, rows are disjoint
+    // between chunks. One ring buffer of prefix sums, as tall as the largest ellipse, serves all terms: every row is
+    // summed once, each ellipse sum is one segment difference per ellipse row, shared by all terms using the ellipse.
+    // Cells closer to the border than a term's ellipse get 0 for it.
+    // The box kernel keeps, per staircase step, running sums of the prefix sum rows within +-h of the current row:
+    // a step's sum is then one difference of those, whatever its size.
+    // Ellipses summed by fft take their sums from the rasters of fftSums, row 0 being data row fftFirstRow.
+    // With a region only its spans are computed, data row i being region row (regionRowOffset + i).
+    private static void calcChunk(ElevationRows data, int startRow, int endRow, Terms terms, LongRaster[] fftSums,
+                                  int fftFirstRow, Float mountainCutoff, RegionMask region, int regionRowOffset,
+                                  RowSink sink) {
+
+        int rows = data.rows();
+        int cols = data.cols();
+        Ellipse[] ellipses = terms.ellipses;
+        int ryMax = terms.ringRy;
+        int diamY = 2 * ryMax + 1;
+        short[] rowData = new short[cols];
+        long[][] sums = new long[ellipses.length][cols];
+        float[][] tpiRows = new float[terms.outer.length][cols];
+        int[] rowBase = new int[diamY];
+        int[] vectorSums = VECTOR_KERNEL && terms.staircases == null ? new int[cols] : null;
+
+        // Circular buffer for prefix sums, diamY rows of cols entries in one flat array
+        int[] buffer = new int[diamY * cols];
         int head = 0;
 
-        // Preload first diamY rows: rows from (startRow - ry) to (startRow + ry)
+        // Preload first diamY rows: rows from (startRow - ryMax) to (startRow + ryMax), zero beyond the grid
         for (int d = 0; d < diamY; d++) {
-            int y = startRow - ry + d;
-            int bufIdx = (head + d) % diamY;
-            if (y >= 0 && y < rows) {
-                int sum = 0;
-                for (int x = 0; x < cols; x++) {
-                    sum += data[y][x];
-                    buffer[bufIdx][x] = sum;
+            fillPrefixSums(data, startRow - ryMax + d, buffer, ((head + d) % diamY) * cols, rowData);
+        }
+        Staircase[] staircases = terms.staircases;
+        long[][][] stepSums = staircases == null ? null : new long[ellipses.length][][];
+        if (stepSums != null) {
+            for (int e = 0; e < ellipses.length; e++) {
+                int[] h = staircases[e].h;
+                stepSums[e] = new long[h.length][cols];
+                for (int k = 0; k < h.length; k++) {
+                    for (int d = ryMax - h[k]; d <= ryMax + h[k]; d++) {
+                        addRow(stepSums[e][k], buffer, d * cols, 1);
+                    }
                 }
-            } else {
-                throw new IllegalStateException("Out of bounds during tpi calculations. Bbox too tiny or radii too big?");
             }
         }
 
+        int[] allCols = {0, cols};
         // Main loop: compute each output row and slide the buffer
         for (int i = startRow; i < endRow; i++) {
-            if (i - ry < 0 || i + ry >= rows) {
-                continue;
+            for (int d = 0; d < diamY; d++) {
+                rowBase[d] = ((head + d) % diamY) * cols; // no modulo in the per cell loops
             }
-            int outRowIdx = i - startRow;
-            for (int j = rx; j < cols - rx; j++) {
-                long sum = 0;
-                for (int d = 0; d < diamY; d++) {
-                    int bufIdx = (head + d) % diamY;
-                    int left = j - dxArr[d];
-                    int right = j + dxArr[d];
-                    sum += buffer[bufIdx][right]
-                            - (left > 0 ? buffer[bufIdx][left - 1] : 0);
+            data.getRow(i, 0, rowData, 0, cols);
+            int[] spans = region == null ? allCols : region.spans(regionRowOffset + i);
+            for (int e = 0; e < ellipses.length; e++) {
+                Ellipse el = ellipses[e];
+                if (i - el.ry < 0 || i + el.ry >= rows) {
+                    continue;
+                }
+                if (fftSums[e] != null) {
+                    fftSums[e].getRow(i - fftFirstRow, 0, sums[e], 0, cols);
+                    continue;
+                }
+                long[] sum = sums[e];
+                if (stepSums != null) {
+                    boxSums(staircases[e], stepSums[e], el.rx, cols, rowData, mountainCutoff, spans, sum);
+                    continue;
+                }
+                int[] dx = el.dx;
+                int firstD = ryMax - el.ry;
+                boolean vector = vectorSums != null && el.count <= MAX_VECTOR_CELLS;
+                for (int k = 0; k < spans.length; k += 2) {
+                    int end = Math.min(cols - el.rx, spans[k + 1]);
+                    for (int j = Math.max(el.rx, spans[k]); j < end; j++) {
+                        // mountains are cut off, no need to compute their mean (the loader may not even have decoded them)
+                        if (mountainCutoff != null && rowData[j] > mountainCutoff) {
+                            continue;
+                        }
+                        if (!vector || j == el.rx) { // the vector kernel can't start a segment at column 0
+                            sum[j] = ellipseSum(buffer, rowBase, firstD, dx, j);
+                            continue;
+                        }
+                        // the run of cells below the cutoff starting here, in vector steps
+                        int runEnd = j + 1;
+                        while (runEnd < end && (mountainCutoff == null || rowData[runEnd] <= mountainCutoff)) runEnd++;
+                        VectorEllipseSums.ellipseSums(buffer, rowBase, firstD, dx, j, runEnd, vectorSums);
+                        for (int x = j; x < runEnd; x++) sum[x] = vectorSums[x];
+                        j = runEnd - 1;
+                    }
+                }
+            }
+            for (int t = 0; t < tpiRows.length; t++) {
+                float[] tpiRow = tpiRows[t];
+                Arrays.fill(tpiRow, terms.means ? Float.NaN : 0);
+                Ellipse o = ellipses[terms.outer[t]];
+                if (i - o.ry < 0 || i + o.ry >= rows) {
+                    continue; // the row stays 0
+                }
+                int in = terms.inner[t];
+                long[] outerSum = sums[terms.outer[t]];
+                long[] innerSum = in < 0 ? null : sums[in];
+                int count = terms.count(terms.outer[t]) - (in < 0 ? 0 : terms.count(in));
+                for (int k = 0; k < spans.length; k += 2) {
+                    for (int j = Math.max(o.rx, spans[k]); j < Math.min(cols - o.rx, spans[k + 1]); j++) {
+                        if (mountainCutoff != null && rowData[j] > mountainCutoff) {
+                            continue;
+                        }
+                        long sum = innerSum == null ? outerSum[j] : outerSum[j] - innerSum[j];
+                        float mean = (float) (sum / (double) count);
+                        if (terms.means) {
+                            tpiRow[j] = mean;
+                            continue;
+                        }
+                        // final tpi: positive part of elevation minus mean
+                        float val = rowData[j] - mean;
+                        tpiRow[j] = val > 0 ? val : 0;
+                    }
+                }
+            }
+            sink.accept(i, tpiRows);
+            if (stepSums != null) {
+                // row i - h leaves the step sums, before it leaves the buffer
+                for (int e = 0; e < ellipses.length; e++) {
+                    int[] h = staircases[e].h;
+                    for (int k = 0; k < h.length; k++) addRow(stepSums[e][k], buffer, rowBase[ryMax - h[k]], -1);
                 }
-                meanChunk[outRowIdx][j] = (float) (sum / (double) count);
             }
             // Slide buffer: remove oldest, add next row
             head = (head + 1) % diamY;
-            int newY = i + ry + 1;
-            int fillIdx = (head + diamY - 1) % diamY;
-            if (newY >= 0 && newY < rows) {
-                int sum = 0;
-                for (int x = 0; x < cols; x++) {
-                    sum += data[newY][x];
-                    buffer[fillIdx][x] = sum;
-                }
-            } else {
-                Arrays.fill(buffer[fillIdx], 0);
-            }
-        }
-        return new ChunkResult(startRow, meanChunk);
-    }
-
-    public static float[][] parallelCalcTPI(short[][] data, double radius, double minLat,
-                                            Float mountainCutoff) {
-        int procs = Runtime.getRuntime().availableProcessors();
-        double radiusLon = radius / Math.cos(Math.toRadians(minLat));
-        initEllipseMask(radius, radiusLon);
-        int rows = data.length;
-        int ry = (int) Math.round(radius);
-        int[] cuts = new int[procs + 1];
-        for (int i = 0; i <= procs; i++) cuts[i] = ry + i * (rows - 2 * ry) / procs;
-        ExecutorService exec = Executors.newFixedThreadPool(procs);
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            exec.shutdown(); // stop accepting new tasks
-            try {
-                if (!exec.awaitTermination(5, TimeUnit.SECONDS)) {
-                    exec.shutdownNow(); // force-kill lingering tasks
+            fillPrefixSums(data, i + ryMax + 1, buffer, ((head + diamY - 1) % diamY) * cols, rowData);
+            if (stepSums != null) {
+                // row i + 1 + h enters
+                for (int e = 0; e < ellipses.length; e++) {
+                    int[] h = staircases[e].h;
+                    for (int k = 0; k < h.length; k++) {
+                        addRow(stepSums[e][k], buffer, ((head + ryMax + h[k]) % diamY) * cols, 1);
+                    }
                 }
-            } catch (InterruptedException ignored) {
-                exec.shutdownNow();
-                Thread.currentThread().interrupt();
             }
-        }));
-        List<Future<ChunkResult>> futures = new ArrayList<>();
-        for (int i = 0; i < procs; i++) {
-            int s = cuts[i], e = cuts[i + 1];
-            futures.add(exec.submit(() -> calcChunk(data, s, e)));
         }
-        // collect results
-        float[][] meanData;
-        meanData = new float[rows][data[0].length];
-        for (float[] row : meanData) Arrays.fill(row, Float.NaN);
+    }
+
+    // Sum over the ellipse rows of the prefix sum segments [j - dx[d], j + dx[d]]
+    private static long ellipseSum(int[] buffer, int[] rowBase, int firstD, int[] dx, int j) {
+        long s = 0;
+        for (int d = 0; d < dx.length; d++) {
+            int bufBase = rowBase[firstD + d];
+            int left = j - dx[d];
+            int right = j + dx[d];
+            s += buffer[bufBase + right]
+                    - (left > 0 ? buffer[bufBase + left - 1] : 0);
+        }
+        return s;
+    }
+
+    private static void addRow(long[] sums, int[] buffer, int bufBase, int sign) {
+        for (int x = 0; x < sums.length; x++) {
+            sums[x] += sign * buffer[bufBase + x];
+        }
+    }
+
+    // Staircase sums of the row's cells: step k is the box of its rows and cols, minus the part of that box the
+    // step below already covered. Two differences of the step sums per step.
+    private static void boxSums(Staircase st, long[][] stepSums, int rx, int cols, short[] rowData,
+                                Float mountainCutoff, int[] spans, long[] sum) {
+        int[] w = st.w;
+        for (int k = 0; k < spans.length; k += 2) {
+            for (int j = Math.max(rx, spans[k]); j < Math.min(cols - rx, spans[k + 1]); j++) {
+                if (mountainCutoff != null && rowData[j] > mountainCutoff) {
+                    continue;
+                }
+                long s = 0;
+                for (int step = 0; step < w.length; step++) {
+                    int right = j + w[step], left = j - w[step] - 1; // left >= -1, w <= rx <= j
+                    long[] inner = stepSums[step];
+                    s += inner[right] - (left >= 0 ? inner[left] : 0);
+                    if (step > 0) {
+                        long[] below = stepSums[step - 1];
+                        s -= below[right] - (left >= 0 ? below[left] : 0);
+                    }
+                }
+                sum[j] = s;
+            }
+        }
+    }
+
+    // Prefix sums of row y into the buffer at bufBase, zeros for rows outside the grid
+    private static void fillPrefixSums(ElevationRows data, int y, int[] buffer, int bufBase, short[] rowData) {
+        int cols = data.cols();
+        if (y < 0 || y >= data.rows()) {
+            Arrays.fill(buffer, bufBase, bufBase + cols, 0);
+            return;
+        }
+        data.getRow(y, 0, rowData, 0, cols);
+        int sum = 0;
+        for (int x = 0; x < cols; x++) {
+            sum += rowData[x];
+            buffer[bufBase + x] = sum;
+        }
+    }
+
+    // Returns the tpi of every cell, cells closer to the border than the radius are 0. Caller closes the raster.
+    public static FloatRaster parallelCalcTPI(ElevationRows data, double radius, double minLat,
+                                              Float mountainCutoff) {
+        return parallelCalcTPI(data, radius, minLat, mountainCutoff, null, 0);
+    }
+
+    // Same, but cells outside the region are 0 too, data row i being region row (regionRowOffset + i)
+    public static FloatRaster parallelCalcTPI(ElevationRows data, double radius, double minLat,
+                                              Float mountainCutoff, RegionMask region, int regionRowOffset) {
+        return parallelCalcTPI(data, new double[]{radius}, null, minLat, mountainCutoff, region, regionRowOffset)[0];
+    }
+
+    /**
+     * Tpi of several radii in one sweep over the elevation data, one raster per radius. With innerRadii (may be
+     * null, 0 = none) a term becomes a ring: elevation minus the mean between the inner and the outer ellipse.
+     * Equal ellipses are summed only once, e.g. rings between consecutive radii reuse the plain radii's sums.
+     * The rasters are scratch files in java.io.tmpdir unless a storage is given. Caller closes the rasters.
+     */
+    public static FloatRaster[] parallelCalcTPI(ElevationRows data, double[] radii, double[] innerRadii, double minLat,
+                                                Float mountainCutoff, RegionMask region, int regionRowOffset) {
+        return parallelCalcTPI(data, radii, innerRadii, minLat, mountainCutoff, region, regionRowOffset, Kernel.EXACT,
+                Raster.Storage.TMPDIR);
+    }
+
+    public static FloatRaster[] parallelCalcTPI(ElevationRows data, double[] radii, double[] innerRadii, double minLat,
+                                                Float mountainCutoff, RegionMask region, int regionRowOffset,
+                                                Kernel kernel, Raster.Storage storage) {
+        return parallelCalcTPI(data, radii, innerRadii, minLat, mountainCutoff, region, regionRowOffset, kernel, storage,
+                FFT_MIN_RADIUS);
+    }
 
+    // fftMinRadius: see Terms
+    static FloatRaster[] parallelCalcTPI(ElevationRows data, double[] radii, double[] innerRadii, double minLat,
+                                         Float mountainCutoff, RegionMask region, int regionRowOffset,
+                                         Kernel kernel, Raster.Storage storage, int fftMinRadius) {
+        Terms terms = new Terms(radii, innerRadii, minLat, kernel, false, fftMinRadius);
+        FloatRaster[] tpi = new FloatRaster[radii.length];
+        for (int t = 0; t < tpi.length; t++) {
+            tpi[t] = new FloatRaster(data.rows(), data.cols(), storage);
+        }
+        try {
+            sweep(data, 0, data.rows(), terms, mountainCutoff, region, regionRowOffset, storage, (i, tpiRows) -> {
+                for (int t = 0; t < tpi.length; t++) {
+                    tpi[t].setRow(i, 0, tpiRows[t], 0, data.cols());
+                }
+            });
+        } catch (RuntimeException e) {
+            closeAll(tpi);
+            throw e;
+        }
+        return tpi;
+    }
+
+    // Runs calcChunk over rows [fromRow, toRow) on all cores, in blocks stolen by whichever worker is free: cheap
+    // blocks (mountains, outside the region) don't leave cores idle. Safe to call concurrently, every call has its
+    // own terms and sink.
+    // With fft ellipses the rows are swept in strips of one window row: the strip's fft sums are computed first
+    // (windows spread over the pool), kept in rasters of the given storage one strip tall, then its row blocks run.
+    private static void sweep(ElevationRows data, int fromRow, int toRow, Terms terms, Float mountainCutoff,
+                              RegionMask region, int regionRowOffset, Raster.Storage storage, RowSink sink) {
+        if (data.rows() < 2 * terms.ryMax + 1) {
+            throw new IllegalStateException("Out of bounds during tpi calculations. Bbox too tiny or radii too big?");
+        }
+        int stripRows = toRow - fromRow;
+        for (FftEllipseSums fft : terms.fft) {
+            if (fft != null) stripRows = Math.min(stripRows, fft.ty);
+        }
+        // a block preloads as many rows as the kernel is tall, so blocks shouldn't be much shorter, but there
+        // should be a few blocks per worker to steal
+        int perWorker = Math.max(1, stripRows / (BLOCKS_PER_WORKER * POOL.getParallelism()));
+        int blockRows = Math.max(MIN_BLOCK_ROWS, Math.min(2 * terms.ringRy + 1, perWorker));
+        LongRaster[] fftSums = new LongRaster[terms.ellipses.length];
         try {
-            for (Future<ChunkResult> f : futures) {
-                ChunkResult r = f.get();
-                for (int i = 0; i < r.chunk.length; i++) {
-                    System.arraycopy(r.chunk[i], 0, meanData[r.startRow + i], 0, r.chunk[i].length);
-                }
-            }
-        } catch (InterruptedException e) {
-            exec.shutdownNow();
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interrupted during parallel tpi calculation", e);
-        } catch (ExecutionException e) {
-            exec.shutdownNow();
-            throw new RuntimeException("Execution aborted during parallel tpi calculation", e);
+            for (int e = 0; e < fftSums.length; e++) {
+                if (terms.fft[e] != null) fftSums[e] = new LongRaster(stripRows, data.cols(), storage);
+            }
+            for (int strip = fromRow; strip < toRow; strip += stripRows) {
+                int stripStart = strip, stripEnd = Math.min(toRow, strip + stripRows);
+                fftSums(data, stripStart, stripEnd, terms, fftSums);
+                RowBlocks blocks = new RowBlocks(stripStart, stripEnd, blockRows,
+                        (s, e) -> calcChunk(data, s, e, terms, fftSums, stripStart, mountainCutoff, region, regionRowOffset, sink));
+                POOL.invoke(blocks);
+                if (blocks.failure.get() != null) {
+                    throw new RuntimeException("Execution aborted during parallel tpi calculation", blocks.failure.get());
+                }
+            }
         } finally {
-            exec.shutdown();
+            for (LongRaster sums : fftSums) {
+                if (sums != null) sums.close();
+            }
         }
+    }
 
-        // compute final tpi
-        int cols = data[0].length;
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                float val = data[i][j] - meanData[i][j];
-                if (mountainCutoff != null && data[i][j] > mountainCutoff) val = 0;
-                meanData[i][j] = val > 0 ? val : 0;
+    // Fft sums of every ellipse that has them into its raster, row 0 = fromRow, for the rows of [fromRow, toRow) it
+    // fits around: rows it doesn't fit around are never read
+    private static void fftSums(ElevationRows data, int fromRow, int toRow, Terms terms, LongRaster[] fftSums) {
+        for (int e = 0; e < fftSums.length; e++) {
+            if (terms.fft[e] == null) continue;
+            Ellipse el = terms.ellipses[e];
+            int first = Math.max(fromRow, el.ry), end = Math.min(toRow, data.rows() - el.ry);
+            if (first >= end) continue;
+            terms.fft[e].sums(data, first, end, fftSums[e], fromRow, POOL);
+        }
+    }
+
+    private interface Chunk {
+        void run(int startRow, int endRow);
+    }
+
+    // Halves the rows until blocks are small enough. A failing block doesn't throw but records the failure and
+    // makes the remaining blocks return right away: when the pool returns no block is running any more, the caller
+    // may free the rasters.
+    private static class RowBlocks extends RecursiveAction {
+        final int from, to, blockRows;
+        final Chunk chunk;
+        final AtomicReference<Throwable> failure;
+
+        RowBlocks(int from, int to, int blockRows, Chunk chunk) {
+            this(from, to, blockRows, chunk, new AtomicReference<>());
+        }
+
+        private RowBlocks(int from, int to, int blockRows, Chunk chunk, AtomicReference<Throwable> failure) {
+            this.from = from;
+            this.to = to;
+            this.blockRows = blockRows;
+            this.chunk = chunk;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure.get() != null) return;
+            if (to - from <= blockRows) {
+                try {
+                    chunk.run(from, to);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                return;
             }
+            int mid = from + (to - from) / 2;
+            invokeAll(new RowBlocks(from, mid, blockRows, chunk, failure), new RowBlocks(mid, to, blockRows, chunk, failure));
         }
-        return meanData;
     }
 
-}
+    private static void closeAll(FloatRaster[] rasters) {
+        for (FloatRaster raster : rasters) {
+            raster.close();
+        }
+    }
 
+}
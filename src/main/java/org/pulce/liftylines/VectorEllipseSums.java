@@ -0,0 +1,62 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Ellipse sums of the tpi kernel for as many adjacent cells at once as the cpu's vector registers hold. For a run
+ * of cells every ellipse row is one contiguous load at the right and one at the left end, so lanes never gather.
+ * Lives in its own class: it only loads with the jdk.incubator.vector module present (--add-modules), see
+ * {@link #available()}, otherwise TpiCalculator keeps its scalar loop.
+ */
+final class VectorEllipseSums {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private VectorEllipseSums() {
+    }
+
+    // Narrower vectors than 4 ints don't beat the scalar loop
+    static boolean available() {
+        return SPECIES.length() >= 4;
+    }
+
+    /**
+     * sums[j] for j in [from, to): sum over ellipse rows d of the prefix sum segment [j - dx[d], j + dx[d]] in ring
+     * row rowBase[firstD + d]. Needs from > max dx, so no segment starts at column 0, and to + max dx <= cols.
+     * Int arithmetic: exact as long as the true sum fits, which the caller guarantees via the cell count.
+     */
+    static void ellipseSums(int[] buffer, int[] rowBase, int firstD, int[] dx, int from, int to, int[] sums) {
+        int j = from;
+        for (int upper = from + SPECIES.loopBound(to - from); j < upper; j += SPECIES.length()) {
+            IntVector s = IntVector.zero(SPECIES);
+            for (int d = 0; d < dx.length; d++) {
+                int at = rowBase[firstD + d] + j;
+                s = s.add(IntVector.fromArray(SPECIES, buffer, at + dx[d]))
+                        .sub(IntVector.fromArray(SPECIES, buffer, at - dx[d] - 1));
+            }
+            s.intoArray(sums, j);
+        }
+        for (; j < to; j++) {
+            int s = 0;
+            for (int d = 0; d < dx.length; d++) {
+                int at = rowBase[firstD + d] + j;
+                s += buffer[at + dx[d]] - buffer[at - dx[d] - 1];
+            }
+            sums[j] = s;
+        }
+    }
+}
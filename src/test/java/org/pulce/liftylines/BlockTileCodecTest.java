@@ -0,0 +1,75 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockTileCodecTest {
+    // not a multiple of the block height, the last block is short
+    private static final int SIDE = 3 * BlockTileCodec.ROWS_PER_BLOCK + 13;
+
+    @TempDir
+    Path dir;
+
+    private Path encode(short[][] rows) throws IOException {
+        Path file = dir.resolve("N47E012.hgtz");
+        byte[] hgt = TestTiles.hgt(rows);
+        assertEquals(hgt.length, BlockTileCodec.encode(new ByteArrayInputStream(hgt), SIDE, file));
+        return file;
+    }
+
+    @Test
+    void rowRangesDecodeToThePlainRows() throws IOException {
+        short[][] rows = TestTiles.terrain(SIDE, 1);
+        // voids and extremes, the row deltas wrap around
+        rows[5][7] = Short.MIN_VALUE;
+        rows[5][8] = Short.MAX_VALUE;
+        rows[SIDE - 1][0] = Short.MIN_VALUE;
+        Path file = encode(rows);
+        int[][] ranges = {{0, SIDE}, {0, 1}, {63, 65}, {64, 128}, {100, 101}, {SIDE - 20, SIDE}, {7, 7}};
+        try (BlockTileCodec.Reader reader = new BlockTileCodec.Reader(file)) {
+            assertEquals(SIDE, reader.samplesPerSide);
+            for (int[] range : ranges) {
+                int[] next = {range[0]};
+                reader.readRows(range[0], range[1], (tileRow, samples) -> {
+                    assertEquals(next[0]++, tileRow, "rows in order");
+                    assertArrayEquals(rows[tileRow], samples, "row " + tileRow);
+                });
+                assertEquals(range[1], next[0], "rows " + range[0] + "-" + range[1]);
+            }
+        }
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        Path file = encode(TestTiles.terrain(SIDE, 2));
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            fc.truncate(fc.size() - 100);
+        }
+        try (BlockTileCodec.Reader reader = new BlockTileCodec.Reader(file)) {
+            reader.readRows(0, 10, (tileRow, samples) -> { });
+            assertThrows(IOException.class, () -> reader.readRows(SIDE - 1, SIDE, (tileRow, samples) -> { }));
+        }
+    }
+}
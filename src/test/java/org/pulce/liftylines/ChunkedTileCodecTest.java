@@ -0,0 +1,90 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedTileCodecTest {
+    // not a multiple of the chunk size, the south and east chunks are narrow
+    private static final int SIDE = 2 * ChunkedTileCodec.CHUNK + 89;
+
+    @TempDir
+    Path dir;
+
+    private Path encode(short[][] rows) throws IOException {
+        Path file = dir.resolve("N47E012.hgtc");
+        byte[] hgt = TestTiles.hgt(rows);
+        assertEquals(hgt.length, ChunkedTileCodec.encode(new ByteArrayInputStream(hgt), SIDE, file));
+        return file;
+    }
+
+    @Test
+    void rectanglesReadThePlainSamples() throws IOException {
+        short[][] rows = TestTiles.terrain(SIDE, 6);
+        Path file = encode(rows);
+        int c = ChunkedTileCodec.CHUNK;
+        int[][] rects = {{0, SIDE, 0, SIDE}, {c - 1, c + 1, c - 6, c + 4}, {300, 301, 2 * c, SIDE}, {10, 20, 0, 1},
+                {SIDE - 1, SIDE, SIDE - 1, SIDE}, {5, 5, 0, SIDE}};
+        try (ChunkedTileCodec.Reader reader = new ChunkedTileCodec.Reader(file)) {
+            assertEquals(SIDE, reader.samplesPerSide);
+            for (int[] rect : rects) {
+                int firstRow = rect[0], endRow = rect[1], firstCol = rect[2], endCol = rect[3];
+                short[][] seen = new short[SIDE][];
+                int[] next = {firstRow, firstCol}; // row and column the next span has to start at
+                reader.readRect(firstRow, endRow, firstCol, endCol, (tileRow, tileCol, samples, offset, length) -> {
+                    assertEquals(next[0], tileRow, "rows north to south");
+                    assertEquals(next[1], tileCol, "spans west to east");
+                    if (seen[tileRow] == null) seen[tileRow] = new short[SIDE];
+                    samples.get(offset, seen[tileRow], tileCol, length);
+                    next[1] = tileCol + length;
+                    if (next[1] == endCol) {
+                        next[0]++;
+                        next[1] = firstCol;
+                    }
+                });
+                assertEquals(Math.max(firstRow, endRow), next[0], "rect " + firstRow + "-" + endRow);
+                for (int r = firstRow; r < endRow; r++) {
+                    for (int col = firstCol; col < endCol; col++) {
+                        assertEquals(rows[r][col], seen[r][col], "sample " + r + "/" + col);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void rowRangesDecodeToThePlainRows() throws IOException {
+        short[][] rows = TestTiles.terrain(SIDE, 7);
+        Path file = encode(rows);
+        int[][] ranges = {{0, SIDE}, {255, 257}, {SIDE - 3, SIDE}, {42, 43}};
+        try (ChunkedTileCodec.Reader reader = new ChunkedTileCodec.Reader(file)) {
+            for (int[] range : ranges) {
+                int[] next = {range[0]};
+                reader.readRows(range[0], range[1], (tileRow, samples) -> {
+                    assertEquals(next[0]++, tileRow, "rows in order");
+                    assertArrayEquals(rows[tileRow], samples, "row " + tileRow);
+                });
+                assertEquals(range[1], next[0], "rows " + range[0] + "-" + range[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeoTiffSourceTest {
+    // 47.9-48.0 N, 12.0-12.1 E in 1 arcsec pixels, pixel centers on the tile grid
+    private static final int SIDE = 361;
+    private static final short NODATA = -32768;
+
+    @TempDir
+    Path dir;
+
+    // A little-endian classic TIFF of int16 pixels, stripped (segment width = SIDE) or tiled, raw or deflated
+    private Path writeDem(String name, short[][] pixels, int segRows, int segCols, boolean deflate) throws IOException {
+        int across = (SIDE + segCols - 1) / segCols, down = (SIDE + segRows - 1) / segRows;
+        boolean tiled = segCols < SIDE;
+        byte[][] segments = new byte[across * down][];
+        for (int sr = 0; sr < down; sr++) {
+            for (int sc = 0; sc < across; sc++) {
+                int rows = tiled ? segRows : Math.min(segRows, SIDE - sr * segRows); // tiles are padded, strips not
+                ByteBuffer seg = ByteBuffer.allocate(rows * segCols * 2).order(ByteOrder.LITTLE_ENDIAN);
+                for (int r = 0; r < rows; r++) {
+                    short prev = 0;
+                    for (int c = 0; c < segCols; c++) {
+                        int y = sr * segRows + r, x = sc * segCols + c;
+                        short v = y < SIDE && x < SIDE ? pixels[y][x] : 0;
+                        seg.putShort(deflate ? (short) (v - prev) : v); // deflated ones use the horizontal predictor
+                        prev = v;
+                    }
+                }
+                byte[] raw = seg.array();
+                if (deflate) {
+                    ByteArrayOutputStream packed = new ByteArrayOutputStream();
+                    try (DeflaterOutputStream out = new DeflaterOutputStream(packed)) {
+                        out.write(raw);
+                    }
+                    raw = packed.toByteArray();
+                }
+                segments[sr * across + sc] = raw;
+            }
+        }
+
+        Map<Integer, ByteBuffer> tags = new TreeMap<>(); // tag -> field type in the first short, count, values
+        tags.put(256, tag(3, 1).putShort((short) SIDE));
+        tags.put(257, tag(3, 1).putShort((short) SIDE));
+        tags.put(258, tag(3, 1).putShort((short) 16));
+        tags.put(259, tag(3, 1).putShort((short) (deflate ? 8 : 1)));
+        tags.put(277, tag(3, 1).putShort((short) 1));
+        tags.put(339, tag(3, 1).putShort((short) 2));
+        tags.put(317, tag(3, 1).putShort((short) (deflate ? 2 : 1)));
+        tags.put(tiled ? 322 : 278, tag(3, 1).putShort((short) (tiled ? segCols : segRows)));
+        if (tiled) tags.put(323, tag(3, 1).putShort((short) segRows));
+        ByteBuffer counts = tag(4, segments.length);
+        for (byte[] segment : segments) counts.putInt(segment.length);
+        tags.put(tiled ? 325 : 279, counts);
+        tags.put(tiled ? 324 : 273, tag(4, segments.length)); // offsets, filled in below
+        tags.put(33550, tag(12, 3).putDouble(1 / 3600.0).putDouble(1 / 3600.0).putDouble(0));
+        tags.put(33922, tag(12, 6).putDouble(0).putDouble(0).putDouble(0).putDouble(12.0).putDouble(48.0).putDouble(0));
+        // geographic, pixel is point
+        ByteBuffer keys = tag(3, 12);
+        for (int key : new int[]{1, 1, 0, 2, 1024, 0, 1, 2, 1025, 0, 1, 2}) keys.putShort((short) key);
+        tags.put(34735, keys);
+        byte[] nodata = (NODATA + "\0").getBytes(StandardCharsets.US_ASCII);
+        tags.put(42113, tag(2, nodata.length).put(nodata));
+
+        // header, directory, values that don't fit inline, segments
+        int dirBytes = 2 + 12 * tags.size() + 4;
+        int valuesAt = 8 + dirBytes, dataAt = valuesAt;
+        for (ByteBuffer t : tags.values()) {
+            if (t.capacity() - 6 > 4) dataAt += t.capacity() - 6;
+        }
+        ByteBuffer offsets = tags.get(tiled ? 324 : 273);
+        int at = dataAt;
+        for (byte[] segment : segments) {
+            offsets.putInt(at);
+            at += segment.length;
+        }
+        ByteBuffer file = ByteBuffer.allocate(at).order(ByteOrder.LITTLE_ENDIAN);
+        file.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8).putShort((short) tags.size());
+        int valuePos = valuesAt;
+        for (Map.Entry<Integer, ByteBuffer> e : tags.entrySet()) {
+            ByteBuffer t = e.getValue();
+            int bytes = t.capacity() - 6;
+            file.putShort(e.getKey().shortValue()).putShort(t.getShort(0)).putInt(t.getInt(2));
+            if (bytes <= 4) {
+                file.put(t.array(), 6, bytes).put(new byte[4 - bytes]);
+            } else {
+                file.putInt(valuePos);
+                file.put(valuePos, t.array(), 6, bytes);
+                valuePos += bytes;
+            }
+        }
+        file.putInt(0).position(dataAt);
+        for (byte[] segment : segments) file.put(segment);
+        return Files.write(dir.resolve(name), file.array());
+    }
+
+    private static ByteBuffer tag(int fieldType, int count) {
+        int size = switch (fieldType) {
+            case 2 -> 1;
+            case 3 -> 2;
+            case 4 -> 4;
+            default -> 8;
+        };
+        ByteBuffer t = ByteBuffer.allocate(6 + size * count).order(ByteOrder.LITTLE_ENDIAN);
+        return t.putShort((short) fieldType).putInt(count);
+    }
+
+    private static void assertReadsLike(short[][] pixels, GeoTiffSource source) {
+        LiftyBoundingBox box = new LiftyBoundingBox(47.92, 12.03, 47.98, 12.08);
+        int rowOffset = 72, colOffset = 108; // of the bbox in the dem
+        PackedShortRaster grid = HgtFileReader.readElevationData(source, box, Raster.Storage.DIRECT);
+        short[] row = new short[grid.cols];
+        for (int r = 0; r < grid.rows; r++) {
+            grid.getRow(r, 0, row, 0, row.length);
+            for (int c = 0; c < row.length; c++) {
+                short expected = pixels[r + rowOffset][c + colOffset];
+                assertEquals(expected == NODATA ? 0 : expected, row[c], "sample " + r + "/" + c);
+            }
+        }
+    }
+
+    @Test
+    void stripsAndTilesReadThePixels() throws IOException {
+        short[][] pixels = TestTiles.terrain(SIDE, 11);
+        pixels[100][150] = NODATA;
+        Path stripped = writeDem("stripped.tif", pixels, 50, SIDE, false);
+        Path tiled = writeDem("tiled.tif", pixels, 64, 64, true);
+        for (Path dem : List.of(stripped, tiled)) {
+            try (GeoTiffSource source = GeoTiffSource.open(List.of(dem))) {
+                assertReadsLike(pixels, source);
+            }
+        }
+    }
+
+    @Test
+    void boundingBoxOutsideTheDemIsRejected() throws IOException {
+        Path dem = writeDem("dem.tif", TestTiles.terrain(SIDE, 12), 64, SIDE, false);
+        try (GeoTiffSource source = GeoTiffSource.open(List.of(dem))) {
+            assertThrows(IllegalArgumentException.class, () -> source.patches(new LiftyBoundingBox(47.95, 12.05, 48.05, 12.08)));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HgtFileReaderTest {
+    private static final int HALO = 30;
+    private static final float CUTOFF = 1000;
+
+    @TempDir
+    Path dir;
+
+    private static short[][] stream(TileDownloader source, LiftyBoundingBox box, Float cutoff) {
+        short[][] grid = new short[box.getMaskRows()][box.getMaskCols()];
+        HgtFileReader.streamElevationBands(source, box, 500, HALO, cutoff, Raster.Storage.DIRECT, band -> {
+            for (int r = band.coreStart; r < band.coreEnd; r++) {
+                band.data.getRow(r - band.firstRow, 0, grid[r], 0, grid[r].length);
+            }
+        });
+        return grid;
+    }
+
+    @Test
+    void skipsNothingTheCellsBelowTheCutoffCanSee() throws IOException {
+        // mountains with one valley below the cutoff, in tile rows/cols. Its edges are block edges, only the kernel
+        // reach keeps the neighboring blocks
+        int g = TileSummary.BLOCK;
+        int valleyTop = 22 * g, valleyBottom = 25 * g, valleyLeft = 16 * g, valleyRight = 20 * g;
+        short[][] tile = TestTiles.terrain(TestTiles.SIDE, 5);
+        for (int r = 0; r < TestTiles.SIDE; r++) {
+            for (int c = 0; c < TestTiles.SIDE; c++) {
+                boolean valley = r >= valleyTop && r < valleyBottom && c >= valleyLeft && c < valleyRight;
+                tile[r][c] += valley ? -700 : 1500;
+            }
+        }
+        TestTiles.writeHgt(dir.resolve("N47E012.hgt"), tile);
+
+        // the north west corner of the tile, so the skip grid lines up with the tile blocks
+        LiftyBoundingBox box = new LiftyBoundingBox(47.4, 12.0, 48.0, 12.6);
+        short[][] plain, skipped;
+        try (TileDownloader source = new TileDownloader(dir, "http://localhost:1/", 1)) {
+            plain = stream(source, box, null);
+            skipped = stream(source, box, CUTOFF);
+        }
+
+        long replaced = 0;
+        for (int r = 0; r < plain.length; r++) {
+            for (int c = 0; c < plain[r].length; c++) {
+                assertEquals(tile[r][c], plain[r][c]);
+                if (plain[r][c] == skipped[r][c]) continue;
+                replaced++;
+                assertTrue(plain[r][c] > CUTOFF, "sample " + r + "/" + c + " below the cutoff was skipped");
+                assertTrue(skipped[r][c] > CUTOFF, "skipped sample " + r + "/" + c + " reads below the cutoff");
+                // nor any sample the tpi kernel of a valley cell reaches
+                boolean reached = r >= valleyTop - HALO && r < valleyBottom + HALO
+                        && c >= valleyLeft - HALO && c < valleyRight + HALO;
+                assertFalse(reached, "sample " + r + "/" + c + " next to the valley was skipped");
+            }
+        }
+        assertTrue(replaced > plain.length * (long) plain[0].length / 2, "most of the mountains are skipped");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionTest {
+    private static final String ONE_LINE = "MULTIPOLYGON (((12.0 47.0, 13.0 47.0, 13.0 48.0, 12.0 48.0, 12.0 47.0), "
+            + "(12.25 47.25, 12.75 47.25, 12.75 47.75, 12.25 47.75, 12.25 47.25)))";
+    // how QGIS & co. write it
+    private static final String MULTI_LINE = "MULTIPOLYGON (\n"
+            + "  (\n"
+            + "    (12.0 47.0,\n     13.0 47.0,\n     13.0 48.0,\n     12.0 48.0,\n     12.0 47.0),\n"
+            + "    (12.25 47.25, 12.75 47.25,\r\n     12.75 47.75, 12.25 47.75, 12.25 47.25)\n"
+            + "  )\n"
+            + ")\n";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void multiLineWktIsAccepted() {
+        Region region = Region.fromWkt(MULTI_LINE);
+        assertEquals(47.0, region.minLat, 0);
+        assertEquals(13.0, region.maxLon, 0);
+    }
+
+    @Test
+    void multiLineWktRasterizesLikeOneLine() {
+        LiftyBoundingBox box = new LiftyBoundingBox(47.0, 12.0, 48.0, 13.0, 60);
+        RegionMask expected = Region.fromWkt(ONE_LINE).rasterize(box);
+        RegionMask actual = Region.parse(MULTI_LINE).rasterize(box);
+        assertEquals(expected.cells(), actual.cells());
+        for (int row = 0; row < box.getMaskRows(); row++) {
+            for (int col = 0; col < box.getMaskCols(); col++) {
+                assertEquals(expected.contains(row, col), actual.contains(row, col), "cell " + row + "/" + col);
+            }
+        }
+        // the hole is left out
+        assertFalse(actual.contains(box.getMaskRows() / 2, box.getMaskCols() / 2));
+        assertTrue(actual.contains(5, 5));
+    }
+
+    @Test
+    void multiLineWktFileIsAccepted() throws Exception {
+        Path file = dir.resolve("region.wkt");
+        Files.writeString(file, "SRID=4326;\n" + MULTI_LINE);
+        Region region = Region.parse(file.toString());
+        assertEquals(48.0, region.maxLat, 0);
+    }
+
+    @Test
+    void otherGeometriesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Region.fromWkt("LINESTRING (\n12 47,\n13 48)"));
+        assertThrows(IllegalArgumentException.class, () -> Region.parse("POLYGON EMPTY"));
+        assertThrows(IllegalArgumentException.class, () -> Region.fromWkt("POLYGON ((12 47, 13 47, 13 48"));
+    }
+
+    @Test
+    void polygonsInsideCollectionsAreFound() {
+        LiftyBoundingBox box = new LiftyBoundingBox(47.0, 12.0, 48.0, 13.0, 60);
+        RegionMask expected = Region.fromWkt(ONE_LINE).rasterize(box);
+        String polygon = ONE_LINE.substring("MULTIPOLYGON (".length(), ONE_LINE.length() - 1);
+        Region region = Region.parse("GEOMETRYCOLLECTION (POINT (12.5 47.5), POLYGON EMPTY, POLYGON " + polygon + ")");
+        assertEquals(expected.cells(), region.rasterize(box).cells());
+    }
+
+    @Test
+    void overlappingPolygonsAreUnitedAndHolesCutOut() {
+        LiftyBoundingBox box = new LiftyBoundingBox(47.0, 12.0, 48.0, 13.0, 60);
+        // two overlapping halves, the western one with a hole that the eastern one covers again
+        RegionMask mask = Region.fromWkt("MULTIPOLYGON (((12 47, 12.75 47, 12.75 48, 12 48, 12 47), "
+                + "(12.5 47.25, 12.6 47.25, 12.6 47.75, 12.5 47.75, 12.5 47.25), "
+                + "(12.1 47.25, 12.2 47.25, 12.2 47.75, 12.1 47.75, 12.1 47.25)), "
+                + "((12.25 47, 13 47, 13 48, 12.25 48, 12.25 47)))").rasterize(box);
+        int rows = box.getMaskRows(), cols = box.getMaskCols();
+        int row = rows / 2;
+        assertTrue(mask.contains(row, cols / 2)); // overlap
+        assertTrue(mask.contains(row, (int) (0.55 * cols))); // hole of the first, inside the second
+        assertFalse(mask.contains(row, (int) (0.15 * cols))); // hole of the first only
+        assertTrue(mask.contains(row, cols - 2));
+    }
+
+    @Test
+    void geoJsonHolesMatchWkt() {
+        LiftyBoundingBox box = new LiftyBoundingBox(47.0, 12.0, 48.0, 13.0, 60);
+        Region json = Region.fromGeoJson("{\"type\": \"Feature\", \"geometry\": {\"type\": \"Polygon\", \"coordinates\": ["
+                + "[[12, 47], [13, 47], [13, 48], [12, 48], [12, 47]], "
+                + "[[12.25, 47.25], [12.75, 47.25], [12.75, 47.75], [12.25, 47.75], [12.25, 47.25]]]}}");
+        assertEquals(Region.fromWkt(ONE_LINE).rasterize(box).cells(), json.rasterize(box).cells());
+    }
+}
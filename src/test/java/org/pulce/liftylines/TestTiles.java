@@ -0,0 +1,54 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Synthetic tiles: smooth hills with a bit of noise, like real terrain as far as the codecs are concerned
+final class TestTiles {
+    static final int SIDE = HgtFileReader.TILE_SAMPLES_PER_DEGREE + 1;
+
+    private TestTiles() {
+    }
+
+    static short[][] terrain(int side, long seed) {
+        Random random = new Random(seed);
+        short[][] rows = new short[side][side];
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                rows[r][c] = (short) (1000 + 600 * Math.sin(r / 97.0) * Math.cos(c / 61.0) + random.nextInt(7) - 3);
+            }
+        }
+        return rows;
+    }
+
+    // Raw big-endian samples, row by row, as in a .hgt file
+    static byte[] hgt(short[][] rows) {
+        ByteBuffer buf = ByteBuffer.allocate(rows.length * rows[0].length * Short.BYTES).order(ByteOrder.BIG_ENDIAN);
+        for (short[] row : rows) {
+            for (short v : row) buf.putShort(v);
+        }
+        return buf.array();
+    }
+
+    static Path writeHgt(Path file, short[][] rows) throws IOException {
+        return Files.write(file, hgt(rows));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileCacheTest {
+    @TempDir
+    Path dir;
+
+    private Path tileFile(String name) throws IOException {
+        return Files.write(dir.resolve(name), new byte[100]);
+    }
+
+    // distinct last used times, the index has millisecond resolution
+    private Closeable pin(TileCache cache, String tileName) throws Exception {
+        Closeable pin = cache.pin(tileName);
+        Thread.sleep(5);
+        return pin;
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedTilesNobodyUses() throws Exception {
+        Path oldest = tileFile("N47E012.hgtz"), old = tileFile("N47E013.hgtz"), recent = tileFile("N48E012.hgtz");
+        Path oldSummary = tileFile("N47E013.minmax");
+        TileCache cache = new TileCache(dir, 250);
+        try (Closeable held = pin(cache, "N47E012")) {
+            pin(cache, "N47E013").close();
+            pin(cache, "N48E012").close();
+            cache.evict();
+            assertTrue(Files.exists(oldest), "pinned tiles stay however old");
+            assertFalse(Files.exists(old));
+            assertFalse(Files.exists(oldSummary), "all files of a tile go");
+            assertTrue(Files.exists(recent), "eviction stops once the cache fits");
+            assertTrue(Files.exists(dir.resolve("N47E013.lock")), "lock files stay");
+        }
+        new TileCache(dir, 150).evict();
+        assertFalse(Files.exists(oldest), "unpinned now");
+        assertTrue(Files.exists(recent));
+    }
+
+    @Test
+    void keepsTilesThatAreBeingFilled() throws Exception {
+        Path file = tileFile("N47E012.hgtc");
+        TileCache cache = new TileCache(dir, 1);
+        pin(cache, "N47E012").close();
+        cache.fill("N47E012", () -> {
+            cache.evict();
+            assertTrue(Files.exists(file));
+            return null;
+        });
+        cache.evict();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void deletesSupersededFilesOnlyIfNobodyElseUsesThem() throws Exception {
+        Path plain = tileFile("N47E012.hgt"), converted = tileFile("N47E012.hgtc");
+        TileCache cache = new TileCache(dir, 1);
+        try (Closeable own = pin(cache, "N47E012")) {
+            try (Closeable other = pin(cache, "N47E012")) {
+                assertFalse(cache.fill("N47E012", () -> cache.deleteIfUnpinned("N47E012", plain)));
+                assertTrue(Files.exists(plain));
+            }
+            assertTrue(cache.fill("N47E012", () -> cache.deleteIfUnpinned("N47E012", plain)));
+            assertFalse(Files.exists(plain));
+            // the own pin is back
+            cache.evict();
+            assertTrue(Files.exists(converted));
+        }
+    }
+
+    @Test
+    void fillsOneThreadAtATime() throws Exception {
+        TileCache cache = new TileCache(dir, 0);
+        AtomicInteger inside = new AtomicInteger(), maxInside = new AtomicInteger();
+        List<CompletableFuture<Void>> fills = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            fills.add(CompletableFuture.runAsync(() -> {
+                try {
+                    cache.fill("N47E012", () -> {
+                        maxInside.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                        LockSupport.parkNanos(20_000_000L); // give the others a chance to barge in
+                        inside.decrementAndGet();
+                        return null;
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        CompletableFuture.allOf(fills.toArray(new CompletableFuture[0])).join();
+        assertEquals(1, maxInside.get());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileDownloaderTest {
+    @TempDir
+    Path dir;
+
+    private static void assertTileRows(short[][] expected, Path chunked) throws IOException {
+        try (ChunkedTileCodec.Reader reader = new ChunkedTileCodec.Reader(chunked)) {
+            reader.readRows(0, reader.samplesPerSide, (tileRow, samples) ->
+                    assertArrayEquals(expected[tileRow], samples, "row " + tileRow));
+        }
+    }
+
+    private void assertNoLeftovers() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(), files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(".part") || n.endsWith(".tmp")).toList());
+        }
+    }
+
+    @Test
+    void resumesPartialDownloadAndPublishes() throws Exception {
+        short[][] tile = TestTiles.terrain(TestTiles.SIDE, 8);
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gz)) {
+            out.write(TestTiles.hgt(tile));
+        }
+        byte[] served = gz.toByteArray();
+        int have = served.length / 2;
+        Files.write(dir.resolve("N47E012.hgt.gz.part"), Arrays.copyOf(served, have)); // left by a failed attempt
+
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/N47/N47E012.hgt.gz", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(String.valueOf(range));
+            int from = range == null ? 0 : Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (from > 0) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + (served.length - 1) + "/" + served.length);
+            }
+            exchange.sendResponseHeaders(from > 0 ? 206 : 200, served.length - from);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(served, from, served.length - from);
+            }
+        });
+        server.start();
+        try (TileDownloader downloader = new TileDownloader(dir, "http://localhost:" + server.getAddress().getPort(), 1,
+                TileStorage.CHUNKS)) {
+            Path published = downloader.fetch(47, 12).join();
+            assertEquals(dir.resolve("N47E012.hgtc"), published);
+            assertEquals(List.of("bytes=" + have + "-"), ranges);
+            assertTileRows(tile, published);
+            assertTrue(Files.exists(TileSummary.pathFor(published)), "summary written on publish");
+            short min = Short.MAX_VALUE;
+            for (short[] row : tile) {
+                for (short v : row) min = (short) Math.min(min, v);
+            }
+            assertEquals(min, TileSummary.of(published).min);
+            assertNoLeftovers();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void ingestsPlainTileAndDeletesIt() throws Exception {
+        short[][] tile = TestTiles.terrain(TestTiles.SIDE, 9);
+        Path plain = TestTiles.writeHgt(dir.resolve("N47E012.hgt"), tile);
+        try (TileDownloader downloader = new TileDownloader(dir, "http://localhost:1/", 1, TileStorage.CHUNKS)) {
+            Path converted = downloader.fetch(47, 12).join();
+            assertEquals(dir.resolve("N47E012.hgtc"), converted);
+            assertTileRows(tile, converted);
+        }
+        assertFalse(Files.exists(plain));
+        assertNoLeftovers();
+    }
+
+    @Test
+    void keepsPlainTileWhileAnotherRunReadsIt() throws Exception {
+        Path plain = TestTiles.writeHgt(dir.resolve("N47E012.hgt"), TestTiles.terrain(TestTiles.SIDE, 10));
+        try (TileDownloader reading = new TileDownloader(dir, "http://localhost:1/", 1, TileStorage.HGT);
+             TileDownloader converting = new TileDownloader(dir, "http://localhost:1/", 1, TileStorage.CHUNKS)) {
+            assertEquals(plain, reading.fetch(47, 12).join());
+            assertEquals(dir.resolve("N47E012.hgtc"), converting.fetch(47, 12).join());
+            assertTrue(Files.exists(plain));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileSummaryTest {
+    // not a multiple of the block size, the last block row and column are short
+    private static final int SIDE = 4 * TileSummary.BLOCK + 29;
+
+    private static void assertSameSummary(TileSummary expected, TileSummary actual) {
+        assertEquals(expected.samplesPerSide, actual.samplesPerSide);
+        assertEquals(expected.min, actual.min);
+        assertEquals(expected.max, actual.max);
+        for (int br = 0; br < expected.blocksPerSide; br++) {
+            for (int bc = 0; bc < expected.blocksPerSide; bc++) {
+                assertEquals(expected.blockMin(br, bc), actual.blockMin(br, bc), "min of block " + br + "/" + bc);
+                assertEquals(expected.blockMax(br, bc), actual.blockMax(br, bc), "max of block " + br + "/" + bc);
+            }
+        }
+    }
+
+    @Test
+    void tappedStreamEqualsDecodedRows() throws IOException {
+        short[][] rows = TestTiles.terrain(SIDE, 3);
+        rows[SIDE - 1][SIDE - 1] = Short.MIN_VALUE;
+        rows[0][TileSummary.BLOCK] = Short.MAX_VALUE;
+
+        TileSummary.Builder decoded = new TileSummary.Builder(SIDE);
+        for (int r = 0; r < SIDE; r++) {
+            decoded.accept(r, rows[r]);
+        }
+
+        TileSummary.Builder tapped = new TileSummary.Builder(SIDE);
+        byte[] buf = new byte[777]; // reads straddle row boundaries
+        try (InputStream in = tapped.tap(new ByteArrayInputStream(TestTiles.hgt(rows)))) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(in.read() >= 0); // single byte reads are tapped too
+            }
+            while (in.read(buf, 0, buf.length) >= 0) {
+                // consumed by the tap
+            }
+        }
+        TileSummary summary = decoded.build();
+        assertSameSummary(summary, tapped.build());
+        assertEquals(Short.MIN_VALUE, summary.min);
+        assertEquals(Short.MAX_VALUE, summary.blockMax(0, 1));
+    }
+
+    @Test
+    void truncatedStreamIsRejected() throws IOException {
+        byte[] hgt = TestTiles.hgt(TestTiles.terrain(SIDE, 4));
+        TileSummary.Builder tapped = new TileSummary.Builder(SIDE);
+        try (InputStream in = tapped.tap(new ByteArrayInputStream(hgt, 0, hgt.length - 1))) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        assertThrows(EOFException.class, tapped::build);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2025 liftyLines
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pulce.liftylines;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TpiCalculatorTest {
+
+    // Hills and valleys with some noise, up to about 2400 m
+    private static ShortRaster terrain(int rows, int cols) {
+        ShortRaster elev = new ShortRaster(rows, cols, Raster.Storage.DIRECT);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                double h = 1200 + 700 * Math.sin(i / 23.0) * Math.cos(j / 31.0) + 300 * Math.sin((i + 2 * j) / 11.0);
+                elev.set(i, j, (short) (h + Math.floorMod(i * 7919 + j * 104729, 41)));
+            }
+        }
+        return elev;
+    }
+
+    private static void assertSameTpi(FloatRaster[] expected, FloatRaster[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int t = 0; t < expected.length; t++) {
+            for (int i = 0; i < expected[t].rows; i++) {
+                for (int j = 0; j < expected[t].cols; j++) {
+                    assertEquals(Float.floatToIntBits(expected[t].get(i, j)), Float.floatToIntBits(actual[t].get(i, j)),
+                            "term " + t + " cell " + i + "/" + j);
+                }
+            }
+        }
+    }
+
+    private static void close(Raster... rasters) {
+        for (Raster raster : rasters) raster.close();
+    }
+
+    @Test
+    void fftSumsEqualPrefixSums() {
+        try (ShortRaster elev = terrain(300, 420)) {
+            double[] radii = {6, 21.5};
+            for (Float mountainCutoff : new Float[]{null, 1500f}) {
+                FloatRaster[] prefix = TpiCalculator.parallelCalcTPI(elev, radii, null, 47.5, mountainCutoff, null, 0,
+                        TpiCalculator.Kernel.EXACT, Raster.Storage.DIRECT, Integer.MAX_VALUE);
+                FloatRaster[] fft = TpiCalculator.parallelCalcTPI(elev, radii, null, 47.5, mountainCutoff, null, 0,
+                        TpiCalculator.Kernel.EXACT, Raster.Storage.DIRECT, 16);
+                assertSameTpi(prefix, fft);
+                close(prefix);
+                close(fft);
+            }
+        }
+    }
+
+    @Test
+    void fftRingsEqualPrefixRings() {
+        try (ShortRaster elev = terrain(260, 300)) {
+            double[] radii = {21.5, 40}, inner = {6, 21.5};
+            FloatRaster[] prefix = TpiCalculator.parallelCalcTPI(elev, radii, inner, -12.0, null, null, 0,
+                    TpiCalculator.Kernel.EXACT, Raster.Storage.DIRECT, Integer.MAX_VALUE);
+            FloatRaster[] fft = TpiCalculator.parallelCalcTPI(elev, radii, inner, -12.0, null, null, 0,
+                    TpiCalculator.Kernel.EXACT, Raster.Storage.DIRECT, 20);
+            assertSameTpi(prefix, fft);
+            close(prefix);
+            close(fft);
+        }
+    }
+}